@@ -0,0 +1,135 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Generates the files, MXI and MXP archive that the benchmarks work on, in a
+ * temporary directory that is deleted afterwards.
+ *
+ * <p>The files are a mix of text-like data, which compresses well, and random
+ * data, which doesn't compress at all, so that both the deflate and the stored
+ * paths are exercised. The contents are the same from run to run.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class BenchmarkArchive {
+
+  private static final String[] WORDS = {
+      "extension", "flash", "install", "manager", "archive", "block", "file", "data",
+      "the", "of", "and", "to", "a", "in", "is", "for", "with", "on", "as", "by"};
+
+  private final Path dir;
+  private final File mxiFile;
+  private final File mxpFile;
+  private final int entryCount;
+
+  private BenchmarkArchive(Path dir, int entryCount) {
+    this.dir = dir;
+    this.mxiFile = dir.resolve("bench.mxi").toFile();
+    this.mxpFile = dir.resolve("bench.mxp").toFile();
+    this.entryCount = entryCount;
+  }
+
+  /**
+   * Creates {@code entryCount} files of {@code fileSize} bytes each, and an MXI
+   * listing them, but not the MXP archive itself.
+   */
+  static BenchmarkArchive createSources(int entryCount, int fileSize) throws IOException {
+    BenchmarkArchive archive =
+        new BenchmarkArchive(Files.createTempDirectory("mxp-bench"), entryCount);
+    Random random = new Random(entryCount * 31L + fileSize);
+    Path filesDir = Files.createDirectories(archive.dir.resolve("files"));
+    try (Writer mxi = Files.newBufferedWriter(archive.mxiFile.toPath(), Charsets.UTF_8)) {
+      mxi.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      mxi.write("<macromedia-extension name=\"bench\" version=\"1.0.0\" type=\"command\">\n");
+      mxi.write("  <files>\n");
+      for (int i = 0; i < entryCount; i++) {
+        String name = String.format("file%05d.%s", i, i % 2 == 0 ? "txt" : "bin");
+        Files.write(filesDir.resolve(name), i % 2 == 0
+            ? generateText(random, fileSize) : generateRandom(random, fileSize));
+        mxi.write("    <file source=\"files/" + name + "\" destination=\"$flash/bench\" />\n");
+      }
+      mxi.write("  </files>\n");
+      mxi.write("</macromedia-extension>\n");
+    }
+    return archive;
+  }
+
+  /**
+   * As {@link #createSources(int, int)}, also writing the MXP archive.
+   */
+  static BenchmarkArchive create(int entryCount, int fileSize) throws IOException {
+    BenchmarkArchive archive = createSources(entryCount, fileSize);
+    try {
+      new MxpWriter(archive.mxiFile).write(archive.mxpFile);
+    } catch (MxiFormatException e) {
+      throw new IOException(e);
+    }
+    return archive;
+  }
+
+  private static byte[] generateText(Random random, int size) {
+    StringBuilder text = new StringBuilder(size + 16);
+    while (text.length() < size) {
+      text.append(WORDS[random.nextInt(WORDS.length)]);
+      text.append(random.nextInt(12) == 0 ? '\n' : ' ');
+    }
+    text.setLength(size);
+    return text.toString().getBytes(Charsets.US_ASCII);
+  }
+
+  private static byte[] generateRandom(Random random, int size) {
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    return data;
+  }
+
+  File getMxiFile() {
+    return mxiFile;
+  }
+
+  File getMxpFile() {
+    return mxpFile;
+  }
+
+  int getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Gets a new directory within the archive's directory, for extracting to.
+   */
+  File newDirectory(String name) throws IOException {
+    return Files.createDirectories(dir.resolve(name)).toFile();
+  }
+
+  void delete() throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path directory, IOException e)
+          throws IOException {
+        if (e != null) {
+          throw e;
+        }
+        Files.delete(directory);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,35 @@
+package uk.co.familystock.mxptool;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always enabled, so that the bytes
+ * allocated per operation are reported alongside the timings. Takes the same
+ * arguments as the standard JMH launcher, e.g. a benchmark name pattern or
+ * {@code -p entryCount=100}.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+    // Class designed to be used statically.
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    Options options = new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,89 @@
+package uk.co.familystock.mxptool;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how quickly {@link MxpFileDataInputStream} decompresses a single
+ * file, read from a mapping of the archive.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MxpFileDataInputStreamBenchmark {
+
+  // A compressible file is always the first after the MXI.
+  private static final int FILE_INDEX = 1;
+
+  @Param({"1024", "65536", "1048576", "16777216"})
+  public int fileSize;
+
+  @Param({"1024", "8192", "65536"})
+  public int bufferSize;
+
+  private BenchmarkArchive archive;
+  private ByteBuffer fileData;
+  private byte[] buffer;
+
+  @Setup
+  public void setUp() throws IOException {
+    archive = BenchmarkArchive.create(2, fileSize);
+    MxpEntry entry;
+    try (MxpReader reader = MxpReader.withFile(archive.getMxpFile())) {
+      entry = reader.getEntries().toArray(new MxpEntry[0])[FILE_INDEX];
+    }
+    try (RandomAccessFile file = new RandomAccessFile(archive.getMxpFile(), "r")) {
+      fileData = file.getChannel().map(
+          MapMode.READ_ONLY, entry.getFileDataOffset(), entry.getFileDataLength());
+    }
+    buffer = new byte[bufferSize];
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fileData = null;
+    archive.delete();
+  }
+
+  @Benchmark
+  public long read(Blackhole blackhole) throws IOException {
+    long total = 0;
+    try (MxpFileDataInputStream in = new MxpFileDataInputStream(fileData.duplicate())) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        blackhole.consume(buffer);
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public byte[] readAllBytes() throws IOException {
+    try (MxpFileDataInputStream in = new MxpFileDataInputStream(fileData.duplicate())) {
+      return in.readAllBytes();
+    }
+  }
+}
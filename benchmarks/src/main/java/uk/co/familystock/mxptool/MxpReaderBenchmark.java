@@ -0,0 +1,64 @@
+package uk.co.familystock.mxptool;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to open an archive with {@link MxpReader}, both
+ * scanning every entry up front and lazily.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MxpReaderBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int entryCount;
+
+  @Param({"1024", "65536", "524288"})
+  public int fileSize;
+
+  private BenchmarkArchive archive;
+
+  @Setup
+  public void setUp() throws IOException {
+    archive = BenchmarkArchive.create(entryCount, fileSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    archive.delete();
+  }
+
+  @Benchmark
+  public int withFile() throws IOException {
+    try (MxpReader reader = MxpReader.withFile(archive.getMxpFile())) {
+      return reader.getEntries().size();
+    }
+  }
+
+  @Benchmark
+  public MxpEntry withFileLazily() throws IOException {
+    try (MxpReader reader = MxpReader.withFileLazily(archive.getMxpFile())) {
+      return reader.getMxiFile();
+    }
+  }
+}
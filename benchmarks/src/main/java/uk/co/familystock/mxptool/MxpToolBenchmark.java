@@ -0,0 +1,75 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.CharStreams;
+
+/**
+ * Measures the {@link MxpTool} list and extract commands end to end.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MxpToolBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int entryCount;
+
+  @Param({"1024", "65536", "524288"})
+  public int fileSize;
+
+  private BenchmarkArchive archive;
+  private File targetDir;
+
+  @Setup
+  public void setUp() throws IOException {
+    archive = BenchmarkArchive.create(entryCount, fileSize);
+    targetDir = archive.newDirectory("extracted");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    archive.delete();
+  }
+
+  @Benchmark
+  public void list() throws IOException {
+    MxpTool.list(archive.getMxpFile(), CharStreams.nullWriter());
+  }
+
+  @Benchmark
+  public void extract(ExtractionThreads extractionThreads) throws IOException {
+    MxpTool.extract(archive.getMxpFile(), targetDir, null, extractionThreads.threads);
+  }
+
+  /**
+   * The number of threads to extract with, kept apart so that only the
+   * extract benchmark is run for each.
+   */
+  @State(Scope.Benchmark)
+  public static class ExtractionThreads {
+
+    @Param({"1", "4"})
+    public int threads;
+  }
+}
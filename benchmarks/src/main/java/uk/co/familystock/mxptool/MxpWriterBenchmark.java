@@ -0,0 +1,64 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MxpWriter#write(File)}, including parsing the MXI, for
+ * archives of various shapes.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MxpWriterBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int entryCount;
+
+  @Param({"1024", "65536", "524288"})
+  public int fileSize;
+
+  @Param({"1", "4"})
+  public int compressionThreads;
+
+  private BenchmarkArchive archive;
+  private File mxpFile;
+
+  @Setup
+  public void setUp() throws IOException {
+    archive = BenchmarkArchive.createSources(entryCount, fileSize);
+    mxpFile = archive.getMxpFile();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    archive.delete();
+  }
+
+  @Benchmark
+  public long write() throws IOException, MxiFormatException {
+    MxpWriter writer = new MxpWriter(archive.getMxiFile());
+    writer.setCompressionThreads(compressionThreads);
+    writer.write(mxpFile);
+    return mxpFile.length();
+  }
+}
@@ -0,0 +1,103 @@
+package uk.co.familystock.mxptool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Measures the cost of validating an MXI, as done for every archive written,
+ * using {@link XmlUtil}'s cached schema and per-thread parsers against
+ * compiling the schema and creating a parser for each MXI as it used to.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlUtilBenchmark {
+
+  private static final String MXI_SCHEMA = "data/mxiSchema.xsd";
+
+  @Param({"10", "1000"})
+  public int fileCount;
+
+  private byte[] mxi;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder()
+        .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<macromedia-extension name=\"bench\" version=\"1.0.0\" type=\"command\">\n")
+        .append("  <files>\n");
+    for (int i = 0; i < fileCount; i++) {
+      builder.append("    <file source=\"files/file").append(i)
+          .append(".txt\" destination=\"$flash/bench\" />\n");
+    }
+    builder.append("  </files>\n").append("</macromedia-extension>\n");
+    mxi = builder.toString().getBytes(Charsets.UTF_8);
+  }
+
+  @Benchmark
+  public int cached() throws IOException, SAXException {
+    FileCounter counter = new FileCounter();
+    XmlUtil.parseAndValidateDocument(new ByteArrayInputStream(mxi), MXI_SCHEMA, counter);
+    return counter.files;
+  }
+
+  @Benchmark
+  public int uncached() throws IOException, SAXException, ParserConfigurationException {
+    SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+    parserFactory.setValidating(false);
+    SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    parserFactory.setSchema(schemaFactory.newSchema(
+        new StreamSource(XmlUtil.class.getResourceAsStream(MXI_SCHEMA))));
+    SAXParser parser = parserFactory.newSAXParser();
+    FileCounter counter = new FileCounter();
+    parser.parse(new ByteArrayInputStream(mxi), counter);
+    return counter.files;
+  }
+
+  @Benchmark
+  public int mxpWriterParseMxi() throws IOException, MxiFormatException {
+    return MxpWriter.parseMxi(new ByteArrayInputStream(mxi)).size();
+  }
+
+  private static class FileCounter extends DefaultHandler {
+
+    private int files = 0;
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes attributes) {
+      if ("file".equals(name)) {
+        files++;
+      }
+    }
+  }
+}
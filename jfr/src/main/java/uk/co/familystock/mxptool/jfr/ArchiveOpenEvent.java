@@ -0,0 +1,31 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when a reader opens an archive, which unless it is opened lazily
+ * includes scanning every entry.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.ArchiveOpen")
+@Label("MXP Archive Open")
+@Category({"MXP", "Reading"})
+@Description("An MXP archive opened, and usually scanned, by a reader")
+class ArchiveOpenEvent extends Event {
+
+  @Label("Archive")
+  String mxpFile;
+
+  @Label("Entries")
+  int entryCount;
+
+  @Label("Open Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long openTime;
+}
@@ -0,0 +1,35 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when a writer has written a whole archive.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.ArchiveWrite")
+@Label("MXP Archive Write")
+@Category({"MXP", "Writing"})
+@Description("An MXP archive written by a writer, including parsing its MXI file")
+class ArchiveWriteEvent extends Event {
+
+  @Label("Archive")
+  String mxpFile;
+
+  @Label("Entries")
+  int entryCount;
+
+  @Label("Archive Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Write Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long writeTime;
+}
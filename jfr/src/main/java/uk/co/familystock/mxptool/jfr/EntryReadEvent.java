@@ -0,0 +1,40 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when the file data of an entry has been read, covering every
+ * block filled by its stream.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.EntryRead")
+@Label("MXP Entry Read")
+@Category({"MXP", "Reading"})
+@Description("The file data of an MXP entry decompressed by a reader")
+class EntryReadEvent extends Event {
+
+  @Label("Path")
+  String path;
+
+  @Label("Compressed Size")
+  @DataAmount
+  long compressedBytes;
+
+  @Label("Decompressed Size")
+  @DataAmount
+  long decompressedBytes;
+
+  @Label("Blocks")
+  int blocks;
+
+  @Label("Inflation Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long inflationTime;
+}
@@ -0,0 +1,40 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when a file has been compressed and written to an archive.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.EntryWrite")
+@Label("MXP Entry Write")
+@Category({"MXP", "Writing"})
+@Description("A file compressed and written to an MXP archive by a writer")
+class EntryWriteEvent extends Event {
+
+  @Label("Path")
+  String path;
+
+  @Label("Uncompressed Size")
+  @DataAmount
+  long uncompressedBytes;
+
+  @Label("Compressed Size")
+  @DataAmount
+  long compressedBytes;
+
+  @Label("Blocks")
+  int blocks;
+
+  @Label("Compression Time")
+  @Description("Time spent compressing, summed across the compression threads")
+  @Timespan(Timespan.NANOSECONDS)
+  long compressionTime;
+}
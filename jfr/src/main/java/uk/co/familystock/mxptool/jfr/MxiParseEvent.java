@@ -0,0 +1,31 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when a writer has parsed an MXI file and validated it against the
+ * schema.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.MxiParse")
+@Label("MXI Parse")
+@Category({"MXP", "Writing"})
+@Description("An MXI file parsed and validated against the schema by a writer")
+class MxiParseEvent extends Event {
+
+  @Label("MXI File")
+  String mxiFile;
+
+  @Label("Files")
+  int fileCount;
+
+  @Label("Parse Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long parseTime;
+}
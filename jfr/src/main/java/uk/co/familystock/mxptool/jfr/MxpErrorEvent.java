@@ -0,0 +1,30 @@
+package uk.co.familystock.mxptool.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when reading or writing an archive fails.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+@Name("uk.co.familystock.mxptool.Error")
+@Label("MXP Error")
+@Category("MXP")
+@Description("Reading or writing an MXP archive failed")
+@StackTrace(true)
+class MxpErrorEvent extends Event {
+
+  @Label("Archive")
+  String mxpFile;
+
+  @Label("Error Class")
+  String errorClass;
+
+  @Label("Message")
+  String message;
+}
@@ -0,0 +1,100 @@
+package uk.co.familystock.mxptool.jfr;
+
+import java.io.File;
+
+import javax.annotation.Nullable;
+
+import uk.co.familystock.mxptool.MxpMetricsListener;
+
+/**
+ * A {@link MxpMetricsListener} that records everything it is told as JDK
+ * Flight Recorder events, so that recordings of a slow build show which
+ * archives and entries the time went on, and how much of it was spent
+ * validating MXI files.
+ *
+ * <p>The events are in the "MXP" category and are enabled by default, so are
+ * captured by any recording, for example one started with
+ * {@code -XX:StartFlightRecording}. When no recording is running, nothing is
+ * recorded and each call costs little more than the allocation of an event.
+ *
+ * <p>Events are recorded as each operation finishes, on the thread that
+ * finished it, so the times are carried in the events' own fields rather
+ * than in their durations.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpFlightRecorderListener implements MxpMetricsListener {
+
+  @Override
+  public void archiveOpened(File mxpFile, int entryCount, long nanos) {
+    ArchiveOpenEvent event = new ArchiveOpenEvent();
+    if (event.isEnabled()) {
+      event.mxpFile = mxpFile.getPath();
+      event.entryCount = entryCount;
+      event.openTime = nanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void entryRead(@Nullable String path, long compressedBytes, long decompressedBytes,
+      int blocks, long nanos) {
+    EntryReadEvent event = new EntryReadEvent();
+    if (event.isEnabled()) {
+      event.path = path;
+      event.compressedBytes = compressedBytes;
+      event.decompressedBytes = decompressedBytes;
+      event.blocks = blocks;
+      event.inflationTime = nanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void mxiParsed(File mxiFile, int fileCount, long nanos) {
+    MxiParseEvent event = new MxiParseEvent();
+    if (event.isEnabled()) {
+      event.mxiFile = mxiFile.getPath();
+      event.fileCount = fileCount;
+      event.parseTime = nanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void entryWritten(String path, long uncompressedBytes, long compressedBytes, int blocks,
+      long nanos) {
+    EntryWriteEvent event = new EntryWriteEvent();
+    if (event.isEnabled()) {
+      event.path = path;
+      event.uncompressedBytes = uncompressedBytes;
+      event.compressedBytes = compressedBytes;
+      event.blocks = blocks;
+      event.compressionTime = nanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void archiveWritten(File mxpFile, int entryCount, long bytes, long nanos) {
+    ArchiveWriteEvent event = new ArchiveWriteEvent();
+    if (event.isEnabled()) {
+      event.mxpFile = mxpFile.getPath();
+      event.entryCount = entryCount;
+      event.bytes = bytes;
+      event.writeTime = nanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void error(@Nullable File mxpFile, Throwable error) {
+    MxpErrorEvent event = new MxpErrorEvent();
+    if (event.isEnabled()) {
+      event.mxpFile = mxpFile == null ? null : mxpFile.getPath();
+      event.errorClass = error.getClass().getName();
+      event.message = error.getMessage();
+      event.commit();
+    }
+  }
+}
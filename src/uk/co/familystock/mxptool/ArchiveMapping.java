@@ -0,0 +1,322 @@
+package uk.co.familystock.mxptool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Memory-maps an MXP archive once and hands out read-only slices of it,
+ * rather than mapping every entry separately.
+ *
+ * <p>Archives no larger than the window size are mapped in one go. Larger ones
+ * are mapped on demand in windows that overlap by half, so any slice no longer
+ * than half a window falls entirely within one of them, while longer slices
+ * get a mapping of their own.
+ *
+ * <p>Slices are taken through a {@link Reference} obtained from
+ * {@link #retain()}, which keeps the mappings behind its slices in place until
+ * it is released, after which the slices must not be used. Mappings no longer
+ * used by any reference are kept for reuse, so that opening the same entry
+ * again does not map it again, but only up to {@link #MAX_IDLE_MAPPINGS} of
+ * them, beyond which the least recently used are unmapped. Everything is
+ * unmapped as soon as the owner and every reference have been released,
+ * rather than whenever the garbage collector gets round to it.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class ArchiveMapping {
+
+  private static final Logger logger = Logger.getLogger(ArchiveMapping.class.getName());
+
+  /**
+   * Default size of the mapping windows, large enough that all but the very
+   * largest archives are mapped in one go.
+   */
+  static final long DEFAULT_WINDOW_SIZE = Integer.MAX_VALUE;
+
+  /**
+   * Smallest window size allowed, so that block headers always fit.
+   */
+  static final long MIN_WINDOW_SIZE = 64 * 1024;
+
+  /**
+   * Most mappings kept once no longer in use.
+   */
+  static final int MAX_IDLE_MAPPINGS = 8;
+
+  private final FileChannel channel;
+  private final long size;
+  private final long windowSize;
+  // Distance between the starts of consecutive windows.
+  private final long windowStep;
+
+  // Guarded by this. Mappings in use by at least one reference, and those that
+  // aren't, least recently used first, both keyed by the region mapped.
+  private final Map<Region, Mapping> active = Maps.newHashMap();
+  private final LinkedHashMap<Region, MappedByteBuffer> idle =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private int references = 1;
+
+  /**
+   * Creates a mapping of the file open on {@code channel}, using windows of up
+   * to {@code windowSize} bytes. Nothing is mapped until slices are asked for.
+   * The caller holds the first reference to the mapping.
+   */
+  ArchiveMapping(FileChannel channel, long windowSize) throws IOException {
+    Preconditions.checkNotNull(channel);
+    Preconditions.checkArgument(windowSize >= MIN_WINDOW_SIZE && windowSize <= Integer.MAX_VALUE,
+        "Window size must be between %s and %s bytes, but was %s",
+        MIN_WINDOW_SIZE, Integer.MAX_VALUE, windowSize);
+    this.channel = channel;
+    this.size = channel.size();
+    this.windowSize = windowSize;
+    this.windowStep = size <= windowSize ? windowSize : windowSize / 2;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the longest slice guaranteed to be a view of a shared window.
+   */
+  long getMaxSharedSliceLength() {
+    return Math.min(windowStep, size);
+  }
+
+  /**
+   * Takes a further reference to the mapping, which keeps it from being
+   * released until the reference is itself released.
+   *
+   * @throws IllegalStateException if the mapping has been released
+   */
+  synchronized Reference retain() {
+    Preconditions.checkState(references > 0, "Mapping released.");
+    references++;
+    return new Reference();
+  }
+
+  /**
+   * Releases the caller's original reference to the mapping.
+   */
+  void release() {
+    release(Collections.<Mapping>emptySet());
+  }
+
+  private synchronized ByteBuffer slice(Reference reference, long offset, long length)
+      throws IOException {
+    Preconditions.checkState(references > 0 && !reference.released, "Mapping released.");
+    Preconditions.checkArgument(offset >= 0 && length >= 0);
+    if (offset + length > size) {
+      throw new EOFException("Unexpected end of file.");
+    }
+    Region region;
+    if (length > windowStep) {
+      region = new Region(offset, length);
+    } else {
+      long windowStart = (offset / windowStep) * windowStep;
+      region = new Region(windowStart, Math.min(windowSize, size - windowStart));
+    }
+    Mapping mapping = active.get(region);
+    if (mapping == null) {
+      MappedByteBuffer buffer = idle.remove(region);
+      if (buffer == null) {
+        buffer = channel.map(MapMode.READ_ONLY, region.start, region.length);
+      }
+      mapping = new Mapping(region, buffer);
+      active.put(region, mapping);
+    }
+    if (reference.pinned.add(mapping)) {
+      mapping.users++;
+    }
+    ByteBuffer slice = mapping.buffer.asReadOnlyBuffer();
+    slice.position((int) (offset - region.start));
+    slice.limit((int) (offset - region.start + length));
+    return slice.slice();
+  }
+
+  /**
+   * Releases a reference along with the mappings it was using, unmapping
+   * those no longer needed.
+   */
+  private void release(Set<Mapping> pinned) {
+    List<MappedByteBuffer> unmapped = Lists.newArrayList();
+    synchronized (this) {
+      Preconditions.checkState(references > 0, "Mapping released.");
+      for (Mapping mapping : pinned) {
+        if (--mapping.users == 0) {
+          active.remove(mapping.region);
+          idle.put(mapping.region, mapping.buffer);
+        }
+      }
+      if (--references == 0) {
+        unmapped.addAll(idle.values());
+        idle.clear();
+        for (Mapping mapping : active.values()) {
+          unmapped.add(mapping.buffer);
+        }
+        active.clear();
+      } else {
+        Iterator<MappedByteBuffer> it = idle.values().iterator();
+        while (idle.size() > MAX_IDLE_MAPPINGS) {
+          unmapped.add(it.next());
+          it.remove();
+        }
+      }
+    }
+    for (MappedByteBuffer buffer : unmapped) {
+      Unmapper.unmap(buffer);
+    }
+  }
+
+  /**
+   * A reference to the mapping taken via {@link ArchiveMapping#retain()}.
+   */
+  final class Reference {
+
+    // Guarded by the mapping.
+    private final Set<Mapping> pinned = Sets.newHashSet();
+    private boolean released = false;
+
+    private Reference() {
+    }
+
+    /**
+     * Gets a read-only slice of the archive, in big-endian byte order, which
+     * remains mapped until this reference is released.
+     *
+     * @throws EOFException if the slice would run past the end of the archive
+     * @throws IllegalStateException if the reference has been released
+     */
+    ByteBuffer slice(long offset, long length) throws IOException {
+      return ArchiveMapping.this.slice(this, offset, length);
+    }
+
+    /**
+     * Releases the reference. Only the first call has any effect.
+     */
+    void release() {
+      Set<Mapping> mappings;
+      synchronized (ArchiveMapping.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        mappings = ImmutableSet.copyOf(pinned);
+        pinned.clear();
+      }
+      ArchiveMapping.this.release(mappings);
+    }
+  }
+
+  /**
+   * A region of the archive that is mapped.
+   */
+  private static final class Region {
+
+    private final long start;
+    private final long length;
+
+    private Region(long start, long length) {
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Region)) {
+        return false;
+      }
+      Region other = (Region) obj;
+      return start == other.start && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(start, length);
+    }
+  }
+
+  /**
+   * A mapping in use, along with the number of references using it. Guarded
+   * by the archive mapping.
+   */
+  private static final class Mapping {
+
+    private final Region region;
+    private final MappedByteBuffer buffer;
+    private int users = 0;
+
+    private Mapping(Region region, MappedByteBuffer buffer) {
+      this.region = region;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Frees the memory behind a mapping straight away. There's no public API for
+   * this, so it relies on JDK internals, leaving the mapping to the garbage
+   * collector if they're not available.
+   */
+  private static final class Unmapper {
+
+    // Java 9 and later, sun.misc.Unsafe.invokeCleaner(ByteBuffer).
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafe = theUnsafe.get(null);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        // Older JVM, so fall back to the buffer's own cleaner.
+        invokeCleaner = null;
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static void unmap(MappedByteBuffer mapping) {
+      try {
+        if (INVOKE_CLEANER != null) {
+          INVOKE_CLEANER.invoke(UNSAFE, mapping);
+        } else {
+          // Java 7 and 8, sun.nio.ch.DirectBuffer.cleaner().clean().
+          Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+          cleanerMethod.setAccessible(true);
+          Object cleaner = cleanerMethod.invoke(mapping);
+          if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+          }
+        }
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.log(Level.FINE, "Unable to unmap, leaving it to the garbage collector.", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,442 @@
+package uk.co.familystock.mxptool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compresses the file data for MXP entries, optionally spreading the work
+ * across a pool of worker threads.
+ *
+ * <p>Every block of file data in an MXP archive is compressed as a separate
+ * zlib stream, so blocks can be compressed independently of one another. The
+ * calling thread reads blocks from the source files and hands them to the
+ * workers in batches, while output is written in the original order via a
+ * bounded reorder buffer. The bytes written are identical to those produced by
+ * compressing each block in turn on a single thread.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class BlockCompressionPipeline implements Closeable {
+
+  // Size of the uncompressed file data blocks, exman chokes on anything larger.
+  static final int BLOCK_SIZE = 1024;
+
+  // Number of blocks handed to a worker at a time, this keeps the overhead of
+  // scheduling small compared to the cost of the compression itself.
+  private static final int BLOCKS_PER_TASK = 64;
+
+  // Most bytes from the start of an entry passed to the compression strategy
+  // as the sample when choosing the level for the entry.
+  static final int SAMPLE_SIZE = BLOCK_SIZE * BLOCKS_PER_TASK;
+
+  // Number of tasks allowed to be in flight per worker before the reading
+  // thread waits on the oldest one, bounding the memory held by the pipeline.
+  private static final int PENDING_TASKS_PER_THREAD = 4;
+
+  // Amount of extra space allotted compression buffer to allow for increase in
+  // data size.
+  private static final int COMPRESSION_TOLERANCE_BYTES = 250;
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int maxPendingTasks;
+  private final CodecPool codecPool;
+  private final CompressionStrategy strategy;
+  private final MxpMetricsListener metricsListener;
+  private final Deque<PendingWrite> pending = new ArrayDeque<>();
+  private final Set<EncodedDataSink> openSinks = Sets.newIdentityHashSet();
+  private boolean closed = false;
+
+  /**
+   * Creates a pipeline writing to {@code out} using the given number of
+   * compression threads, taking deflaters from {@code codecPool} and choosing
+   * compression levels using {@code strategy}. A thread count of 1 compresses
+   * on the calling thread.
+   */
+  BlockCompressionPipeline(OutputStream out, int threads, CodecPool codecPool,
+      CompressionStrategy strategy) {
+    this(out, threads, codecPool, strategy, null);
+  }
+
+  /**
+   * As {@link #BlockCompressionPipeline(OutputStream, int, CodecPool,
+   * CompressionStrategy)}, reporting each entry compressed to
+   * {@code metricsListener} once its data has been written.
+   */
+  BlockCompressionPipeline(OutputStream out, int threads, CodecPool codecPool,
+      CompressionStrategy strategy, @Nullable MxpMetricsListener metricsListener) {
+    Preconditions.checkNotNull(out);
+    Preconditions.checkNotNull(codecPool);
+    Preconditions.checkNotNull(strategy);
+    Preconditions.checkArgument(threads > 0, "Thread count must be positive, but was %s", threads);
+    this.out = out;
+    this.codecPool = codecPool;
+    this.strategy = strategy;
+    this.metricsListener = metricsListener;
+    this.maxPendingTasks = threads * PENDING_TASKS_PER_THREAD;
+    this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("mxp-compress-%d").build());
+  }
+
+  /**
+   * Writes bytes that require no compression, such as entry headers, to the
+   * output after any data already queued.
+   */
+  void writeRaw(byte[] data) throws IOException {
+    Preconditions.checkState(!closed, "Pipeline closed.");
+    enqueue(new PendingWrite(Futures.immediateFuture(data), null, false));
+  }
+
+  /**
+   * Writes data that is already encoded, such as the file data of an entry
+   * taken from another archive, to the output after any data already queued.
+   */
+  void writeRaw(InputStream data) throws IOException {
+    Preconditions.checkState(!closed, "Pipeline closed.");
+    finish();
+    ByteStreams.copy(data, out);
+  }
+
+  /**
+   * Reads {@code in} until exhausted, compressing it as a series of blocks and
+   * queuing them for output. The data read first is used as the sample when
+   * choosing the compression level for the entry at {@code path}.
+   */
+  void writeFileData(String path, InputStream in) throws IOException {
+    writeFileData(path, in, null);
+  }
+
+  /**
+   * As {@link #writeFileData(String, InputStream)}, but also copying the
+   * encoded blocks to {@code sink} as they are written to the output. The sink
+   * is not committed until {@link #commit(EncodedDataSink)} is called, and is
+   * aborted if the pipeline is closed first.
+   */
+  void writeFileData(String path, InputStream in, @Nullable EncodedDataSink sink)
+      throws IOException {
+    Preconditions.checkState(!closed, "Pipeline closed.");
+    if (sink != null) {
+      openSinks.add(sink);
+    }
+    EntryMetrics metrics = metricsListener == null ? null : new EntryMetrics(path);
+    int entryLevel = 0;
+    boolean firstTask = true;
+    boolean eof = false;
+    while (!eof) {
+      byte[] data = new byte[SAMPLE_SIZE];
+      int[] blockSizes = new int[BLOCKS_PER_TASK];
+      int blockCount = 0;
+      int offset = 0;
+
+      while (blockCount < BLOCKS_PER_TASK) {
+        int bytesRead = in.read(data, offset, BLOCK_SIZE);
+        if (bytesRead == -1) {
+          eof = true;
+          break;
+        }
+        blockSizes[blockCount++] = bytesRead;
+        offset += bytesRead;
+      }
+
+      if (firstTask) {
+        entryLevel = strategy.getEntryLevel(path, data, offset);
+        firstTask = false;
+      }
+      if (blockCount > 0) {
+        CompressionTask task =
+            new CompressionTask(data, blockSizes, blockCount, entryLevel, metrics);
+        Future<byte[]> result = executor == null
+            ? Futures.immediateFuture(task.call())
+            : executor.submit(task);
+        enqueue(new PendingWrite(result, sink, false));
+      }
+    }
+    if (metrics != null) {
+      enqueue(new PendingWrite(Futures.immediateFuture(new byte[0]), metrics));
+    }
+  }
+
+  /**
+   * Commits {@code sink} once all data queued before it has been written.
+   */
+  void commit(EncodedDataSink sink) throws IOException {
+    Preconditions.checkState(!closed, "Pipeline closed.");
+    enqueue(new PendingWrite(Futures.immediateFuture(new byte[0]), sink, true));
+  }
+
+  /**
+   * Aborts {@code sink}, discarding anything already copied to it.
+   */
+  void abort(EncodedDataSink sink) {
+    if (openSinks.remove(sink)) {
+      sink.abort();
+    }
+  }
+
+  /**
+   * Waits for all queued data to be compressed and written to the output.
+   */
+  void finish() throws IOException {
+    while (!pending.isEmpty()) {
+      writeNext();
+    }
+  }
+
+  /**
+   * Waits for all queued data to be written, then flushes the output so that
+   * it can safely be written to by other means.
+   */
+  void flush() throws IOException {
+    finish();
+    out.flush();
+  }
+
+  /**
+   * Discards any queued data and releases the worker threads. Call
+   * {@link #finish()} first to ensure all queued data is written.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (PendingWrite write : pending) {
+      write.data.cancel(false);
+    }
+    pending.clear();
+    for (EncodedDataSink sink : openSinks) {
+      sink.abort();
+    }
+    openSinks.clear();
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void enqueue(PendingWrite write) throws IOException {
+    pending.add(write);
+    // When compressing on the calling thread everything is already done, so
+    // there's no point holding on to it.
+    int maxPending = executor == null ? 0 : maxPendingTasks;
+    while (pending.size() > maxPending) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    PendingWrite next = pending.poll();
+    byte[] data;
+    try {
+      data = next.data.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for compression.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException("Compression failed.", e.getCause());
+    }
+    out.write(data);
+    if (next.metrics != null) {
+      next.metrics.report(metricsListener);
+    }
+    if (next.sink != null && openSinks.contains(next.sink)) {
+      if (next.commit) {
+        openSinks.remove(next.sink);
+        next.sink.commit();
+      } else {
+        next.sink.write(data);
+      }
+    }
+  }
+
+  /**
+   * Receives a copy of the encoded file data of an entry as it is written.
+   * Sinks are expected to deal with their own errors rather than fail the
+   * writing of the archive.
+   */
+  interface EncodedDataSink {
+
+    void write(byte[] data);
+
+    /**
+     * Called once all the data for the entry has been written.
+     */
+    void commit();
+
+    /**
+     * Called instead of {@link #commit()} if the data for the entry is not
+     * going to be completely written, or should not be kept.
+     */
+    void abort();
+  }
+
+  /**
+   * Data waiting to be written to the output, along with the sink to copy it
+   * to, if any, or the metrics to report once it has been written.
+   */
+  private static final class PendingWrite {
+
+    private final Future<byte[]> data;
+    private final EncodedDataSink sink;
+    private final boolean commit;
+    private final EntryMetrics metrics;
+
+    private PendingWrite(Future<byte[]> data, EncodedDataSink sink, boolean commit) {
+      this.data = data;
+      this.sink = sink;
+      this.commit = commit;
+      this.metrics = null;
+    }
+
+    private PendingWrite(Future<byte[]> data, EntryMetrics metrics) {
+      this.data = data;
+      this.sink = null;
+      this.commit = false;
+      this.metrics = metrics;
+    }
+  }
+
+  /**
+   * Totals up the work done compressing an entry, which may be spread across
+   * several compression threads.
+   */
+  private static final class EntryMetrics {
+
+    private final String path;
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicInteger blocks = new AtomicInteger();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private EntryMetrics(String path) {
+      this.path = path;
+    }
+
+    private void add(long uncompressed, long compressed, int blockCount, long elapsed) {
+      uncompressedBytes.addAndGet(uncompressed);
+      compressedBytes.addAndGet(compressed);
+      blocks.addAndGet(blockCount);
+      nanos.addAndGet(elapsed);
+    }
+
+    private void report(MxpMetricsListener listener) {
+      listener.entryWritten(
+          path, uncompressedBytes.get(), compressedBytes.get(), blocks.get(), nanos.get());
+    }
+  }
+
+  /**
+   * Compresses a run of blocks, returning them encoded as they appear in an MXP
+   * archive, i.e. each preceded by its uncompressed and compressed sizes.
+   */
+  private class CompressionTask implements Callable<byte[]> {
+
+    private final byte[] data;
+    private final int[] blockSizes;
+    private final int blockCount;
+    private final int entryLevel;
+    private final EntryMetrics metrics;
+
+    private CompressionTask(byte[] data, int[] blockSizes, int blockCount, int entryLevel,
+        @Nullable EntryMetrics metrics) {
+      this.data = data;
+      this.blockSizes = blockSizes;
+      this.blockCount = blockCount;
+      this.entryLevel = entryLevel;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      long start = metrics == null ? 0 : System.nanoTime();
+      long uncompressedBytes = 0;
+      long compressedBytes = 0;
+      
+      // Deflaters borrowed for this task, indexed by level + 1.
+      Deflater[] deflaters = new Deflater[Deflater.BEST_COMPRESSION + 2];
+
+      byte[] compressionBuffer = new byte[BLOCK_SIZE];
+
+      // Create a buffer to write the compressed data to. We make large enough to
+      // hold the original data and a tiny bit more as the compression algorithm
+      // can in some cases result in output larger than the input.
+      // ByteArrayOutputStream will handle any necessary array expansion, but we
+      // try to avoid that expense.
+      ByteArrayOutputStream compressedData =
+          new ByteArrayOutputStream(BLOCK_SIZE + COMPRESSION_TOLERANCE_BYTES);
+      ByteArrayOutputStream encodedData = new ByteArrayOutputStream(
+          blockCount * (BLOCK_SIZE + COMPRESSION_TOLERANCE_BYTES));
+      try {
+        int offset = 0;
+        for (int i = 0; i < blockCount; i++) {
+          int level = strategy.getBlockLevel(entryLevel, data, offset, blockSizes[i]);
+          Preconditions.checkState(level >= Deflater.DEFAULT_COMPRESSION
+              && level <= Deflater.BEST_COMPRESSION, "Invalid compression level %s", level);
+          Deflater deflater = deflaters[level + 1];
+          if (deflater == null) {
+            deflater = codecPool.borrowDeflater(level);
+            deflaters[level + 1] = deflater;
+          }
+          deflater.setInput(data, offset, blockSizes[i]);
+          deflater.finish(); // signal that this is the entire input for compression.
+
+          int segmentSize = 0;
+          compressedData.reset();
+
+          // Most of the time compressionBuffer will be large enough to hold the
+          // entirety of the compressed data, but as the compression algorithm can
+          // sometimes result in more output bytes than input we need to use a
+          // ByteArrayOutputStream to allow for this.
+          int bytesCompressed;
+          while ((bytesCompressed = deflater.deflate(compressionBuffer)) > 0) {
+            segmentSize += bytesCompressed;
+            compressedData.write(compressionBuffer, 0, bytesCompressed);
+          }
+
+          MxpWriter.writeUnsignedInt32(encodedData, blockSizes[i]);
+          MxpWriter.writeUnsignedInt32(encodedData, segmentSize);
+          compressedData.writeTo(encodedData);
+          uncompressedBytes += blockSizes[i];
+          compressedBytes += segmentSize;
+
+          deflater.reset();
+          offset += blockSizes[i];
+        }
+      } finally {
+        for (Deflater deflater : deflaters) {
+          if (deflater != null) {
+            codecPool.release(deflater);
+          }
+        }
+      }
+      if (metrics != null) {
+        metrics.add(uncompressedBytes, compressedBytes, blockCount, System.nanoTime() - start);
+      }
+      return encodedData.toByteArray();
+    }
+  }
+}
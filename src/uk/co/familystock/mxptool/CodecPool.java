@@ -0,0 +1,203 @@
+package uk.co.familystock.mxptool;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A thread-safe pool of {@link Deflater}s and {@link Inflater}s.
+ *
+ * <p>Both hold native zlib memory that is otherwise only released when the
+ * garbage collector gets round to finalizing them. Codecs borrowed from the pool
+ * must be handed back via {@link #release(Deflater)} or
+ * {@link #release(Inflater)}, at which point they are either kept for reuse or,
+ * if the pool is full or closed, ended straight away.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class CodecPool implements Closeable {
+
+  /**
+   * Default maximum number of idle codecs of each kind kept by a pool.
+   */
+  public static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+  private static final CodecPool DEFAULT_POOL = new CodecPool(DEFAULT_MAX_IDLE);
+
+  // Deflate levels run from -1 (DEFAULT_COMPRESSION) to 9 (BEST_COMPRESSION).
+  private static final int MIN_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  private static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+
+  private final int maxIdle;
+  private final Queue<Inflater> idleInflaters;
+  // Idle deflaters for each compression level, indexed from MIN_LEVEL.
+  private final List<Queue<Deflater>> idleDeflaters;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a pool keeping at most {@code maxIdle} idle inflaters, and at most
+   * {@code maxIdle} idle deflaters for each compression level.
+   */
+  public CodecPool(int maxIdle) {
+    Preconditions.checkArgument(maxIdle >= 0, "maxIdle must not be negative, but was %s", maxIdle);
+    this.maxIdle = maxIdle;
+    idleInflaters = newQueue();
+    ImmutableList.Builder<Queue<Deflater>> deflaters = ImmutableList.builder();
+    for (int level = MIN_LEVEL; level <= MAX_LEVEL; level++) {
+      deflaters.add(this.<Deflater>newQueue());
+    }
+    idleDeflaters = deflaters.build();
+  }
+
+  /**
+   * Gets the pool shared by readers and writers that have not been given a pool
+   * of their own. The shared pool lives as long as the JVM, so should not be
+   * closed.
+   */
+  public static CodecPool getDefault() {
+    return DEFAULT_POOL;
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  /**
+   * Gets the number of times a codec was borrowed and an idle one was reused.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Gets the number of times a codec was borrowed and a new one had to be
+   * created.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Borrows a {@code Deflater} using the given compression level, creating one
+   * if there are none idle.
+   *
+   * @throws IllegalStateException if the pool has been closed
+   */
+  public Deflater borrowDeflater(int level) {
+    Preconditions.checkState(!closed, "Codec pool closed.");
+    Preconditions.checkArgument(level >= MIN_LEVEL && level <= MAX_LEVEL,
+        "Invalid compression level %s", level);
+    Deflater deflater = idleDeflaters.get(level - MIN_LEVEL).poll();
+    if (deflater != null) {
+      hits.incrementAndGet();
+      return deflater;
+    }
+    misses.incrementAndGet();
+    return new PooledDeflater(level);
+  }
+
+  /**
+   * Borrows an {@code Inflater}, creating one if there are none idle.
+   *
+   * @throws IllegalStateException if the pool has been closed
+   */
+  public Inflater borrowInflater() {
+    Preconditions.checkState(!closed, "Codec pool closed.");
+    Inflater inflater = idleInflaters.poll();
+    if (inflater != null) {
+      hits.incrementAndGet();
+      return inflater;
+    }
+    misses.incrementAndGet();
+    return new Inflater();
+  }
+
+  /**
+   * Returns a {@code Deflater} to the pool. The deflater must not be used by
+   * the caller afterwards.
+   */
+  public void release(Deflater deflater) {
+    Preconditions.checkNotNull(deflater);
+    // Deflaters don't expose their level, so only those created by the pool
+    // can be reused.
+    if (deflater instanceof PooledDeflater) {
+      deflater.reset();
+      offer(idleDeflaters.get(((PooledDeflater) deflater).level - MIN_LEVEL), deflater);
+    } else {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Returns an {@code Inflater} to the pool. The inflater must not be used by
+   * the caller afterwards.
+   */
+  public void release(Inflater inflater) {
+    Preconditions.checkNotNull(inflater);
+    inflater.reset();
+    offer(idleInflaters, inflater);
+  }
+
+  /**
+   * Ends all idle codecs, releasing their native memory. Codecs still on loan
+   * are ended as they are released.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    endAll(idleInflaters);
+    for (Queue<Deflater> deflaters : idleDeflaters) {
+      endAll(deflaters);
+    }
+  }
+
+  private <T> Queue<T> newQueue() {
+    return new ArrayBlockingQueue<T>(Math.max(maxIdle, 1));
+  }
+
+  private <T> void offer(Queue<T> idle, T codec) {
+    if (closed || maxIdle == 0 || !idle.offer(codec)) {
+      end(codec);
+    } else if (closed) {
+      // Closed while we were adding, so make sure nothing is left behind.
+      endAll(idle);
+    }
+  }
+
+  private static <T> void endAll(Queue<T> idle) {
+    T codec;
+    while ((codec = idle.poll()) != null) {
+      end(codec);
+    }
+  }
+
+  private static void end(Object codec) {
+    if (codec instanceof Deflater) {
+      ((Deflater) codec).end();
+    } else {
+      ((Inflater) codec).end();
+    }
+  }
+
+  /**
+   * Deflater that remembers the level it was created with.
+   */
+  private static final class PooledDeflater extends Deflater {
+
+    private final int level;
+
+    private PooledDeflater(int level) {
+      super(level);
+      this.level = level;
+    }
+  }
+}
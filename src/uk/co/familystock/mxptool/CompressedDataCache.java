@@ -0,0 +1,395 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * An on-disk cache of the compressed file data written to MXP archives, so that
+ * repeatedly packaging the same files does not mean repeatedly compressing them.
+ *
+ * <p>Data is keyed by the content of the file along with the
+ * {@link CompressionStrategy} used and the level it chose for the entry, so
+ * identical files share data wherever they are in an archive, and is evicted
+ * least recently used first once the cache grows beyond its maximum size.
+ * Entries are written to a temporary file, synced and then moved into place,
+ * so a crash can at worst leave behind a temporary file that is cleared out
+ * the next time the cache is opened. Each entry ends with the length and
+ * CRC-32 of its data, and an entry that fails to match is treated as missing,
+ * so a damaged cache can't produce a broken archive. A cache directory may be
+ * shared by several processes, although the size limit is then only enforced
+ * approximately.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class CompressedDataCache {
+
+  // Change whenever the layout of the cached data changes.
+  private static final int CACHE_VERSION = 2;
+
+  private static final String ENTRY_SUFFIX = ".blocks";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // The length and CRC-32 of the data follow it in each entry.
+  private static final int TRAILER_SIZE = 8 + 4;
+
+  // Temporary files older than this are assumed to have been left behind by a
+  // crash rather than belonging to a writer in another process.
+  private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  private static final Logger logger = Logger.getLogger(CompressedDataCache.class.getName());
+
+  private final File directory;
+  private final long maxSizeBytes;
+
+  // Sizes of the cached entries by key, in least to most recently used order.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeBytes = 0;
+
+  /**
+   * Opens the cache held in {@code directory}, creating the directory if
+   * needed.
+   *
+   * @param directory the directory to hold the cached data
+   * @param maxSizeBytes the size the cache is allowed to grow to before the
+   *     least recently used data is evicted
+   * @throws IOException if the directory can't be created or read
+   */
+  public CompressedDataCache(File directory, long maxSizeBytes) throws IOException {
+    Preconditions.checkNotNull(directory, "Cache directory must not be null.");
+    Preconditions.checkArgument(maxSizeBytes > 0,
+        "Maximum cache size must be positive, but was %s", maxSizeBytes);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory '"
+          + directory.getAbsolutePath() + "'.");
+    }
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+    load();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /**
+   * Gets the total size of the data currently held in the cache.
+   */
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Computes the key for the compressed form of {@code contentHash}, as
+   * produced by {@link #hashContent(ByteSource)}, when compressed using
+   * {@code strategy} with {@code entryLevel} as the level for the entry. The
+   * path of the entry only matters as far as it affects the entry level.
+   */
+  static String computeKey(HashCode contentHash, CompressionStrategy strategy, int entryLevel) {
+    return HASH_FUNCTION.newHasher()
+        .putInt(CACHE_VERSION)
+        .putString(strategy.getId(), Charsets.UTF_8)
+        .putInt(entryLevel)
+        .putBytes(contentHash.asBytes())
+        .hash()
+        .toString();
+  }
+
+  /**
+   * Hashes the content of a file to be cached.
+   */
+  static HashCode hashContent(ByteSource content) throws IOException {
+    return content.hash(HASH_FUNCTION);
+  }
+
+  static HashFunction getContentHashFunction() {
+    return HASH_FUNCTION;
+  }
+
+  /**
+   * Opens the cached data for {@code key}, marking it as most recently used.
+   * The data is checked against its checksum first, and an entry that fails
+   * the check is evicted. The data remains readable even if it is evicted
+   * before the stream is closed.
+   *
+   * @return the cached data, or null if there is none or it is damaged
+   */
+  @Nullable
+  InputStream get(String key) {
+    FileInputStream in = open(key);
+    if (in == null) {
+      return null;
+    }
+    // Checked outside the lock, as this reads the whole entry. The open file
+    // is unaffected if the entry is replaced meanwhile.
+    boolean valid = false;
+    try {
+      long dataLength = checkEntry(in.getChannel());
+      if (dataLength >= 0) {
+        in.getChannel().position(0);
+        valid = true;
+        return ByteStreams.limit(in, dataLength);
+      }
+      logger.warning("Discarding damaged cache entry " + key);
+      remove(key);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to read cache entry " + key, e);
+    } finally {
+      if (!valid) {
+        Closeables.closeQuietly(in);
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private synchronized FileInputStream open(String key) {
+    File file = getEntryFile(key);
+    Long size = entries.get(key);
+    if (size == null) {
+      if (!file.isFile()) {
+        return null;
+      }
+      // Added by another process sharing the directory.
+      entries.put(key, file.length());
+      sizeBytes += file.length();
+    }
+    try {
+      FileInputStream in = new FileInputStream(file);
+      // Record the use on disk too, so that the order survives between runs.
+      file.setLastModified(System.currentTimeMillis());
+      return in;
+    } catch (FileNotFoundException e) {
+      // Evicted by another process sharing the directory.
+      sizeBytes -= entries.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * Checks the data of an entry against its trailer.
+   *
+   * @return the length of the data, or -1 if it doesn't match the trailer
+   */
+  private static long checkEntry(FileChannel channel) throws IOException {
+    long dataLength = channel.size() - TRAILER_SIZE;
+    if (dataLength < 0) {
+      return -1;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long remaining = dataLength;
+    channel.position(0);
+    while (remaining > 0) {
+      buffer.clear();
+      if (remaining < buffer.capacity()) {
+        buffer.limit((int) remaining);
+      }
+      int bytesRead = channel.read(buffer);
+      if (bytesRead == -1) {
+        return -1;
+      }
+      crc.update(buffer.array(), 0, bytesRead);
+      remaining -= bytesRead;
+    }
+    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+    while (trailer.hasRemaining()) {
+      if (channel.read(trailer) == -1) {
+        return -1;
+      }
+    }
+    trailer.flip();
+    if (trailer.getLong() != dataLength || (trailer.getInt() & 0xffffffffL) != crc.getValue()) {
+      return -1;
+    }
+    return dataLength;
+  }
+
+  private synchronized void remove(String key) {
+    File file = getEntryFile(key);
+    if (!file.delete() && file.exists()) {
+      logger.warning("Unable to remove cache entry '" + file.getAbsolutePath() + "'.");
+    }
+    Long size = entries.remove(key);
+    if (size != null) {
+      sizeBytes -= size;
+    }
+  }
+
+  /**
+   * Starts a new entry for {@code key}, which becomes visible once committed.
+   * Any failure writing the entry is logged and the entry discarded.
+   */
+  BlockCompressionPipeline.EncodedDataSink newEntry(String key) {
+    return new CacheEntryWriter(key);
+  }
+
+  private synchronized void put(String key, File tempFile) throws IOException {
+    File file = getEntryFile(key);
+    Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Long previousSize = entries.put(key, file.length());
+    sizeBytes += file.length() - (previousSize == null ? 0 : previousSize);
+    evict();
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (sizeBytes > maxSizeBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      File file = getEntryFile(eldest.getKey());
+      if (!file.delete() && file.exists()) {
+        logger.warning("Unable to evict cache entry '" + file.getAbsolutePath() + "'.");
+      }
+      sizeBytes -= eldest.getValue();
+      it.remove();
+    }
+  }
+
+  private synchronized void load() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to read cache directory '"
+          + directory.getAbsolutePath() + "'.");
+    }
+    // Oldest first, so the map ends up in least recently used order.
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f1.lastModified(), f2.lastModified());
+      }
+    });
+    long now = System.currentTimeMillis();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(ENTRY_SUFFIX)) {
+        entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), file.length());
+        sizeBytes += file.length();
+      } else if (name.endsWith(TEMP_SUFFIX) && now - file.lastModified() > STALE_TEMP_FILE_MILLIS) {
+        file.delete();
+      }
+    }
+    evict();
+  }
+
+  private File getEntryFile(String key) {
+    return new File(directory, key + ENTRY_SUFFIX);
+  }
+
+  /**
+   * Writes a new cache entry to a temporary file, moving it into place when
+   * committed.
+   */
+  private class CacheEntryWriter implements BlockCompressionPipeline.EncodedDataSink {
+
+    private final String key;
+    private final CRC32 crc = new CRC32();
+    private long dataLength = 0;
+    private File tempFile;
+    private FileOutputStream out;
+    private boolean failed = false;
+
+    private CacheEntryWriter(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void write(byte[] data) {
+      if (failed) {
+        return;
+      }
+      try {
+        ensureOpen();
+        out.write(data);
+        crc.update(data);
+        dataLength += data.length;
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void commit() {
+      if (failed) {
+        return;
+      }
+      try {
+        ensureOpen();
+        out.write(ByteBuffer.allocate(TRAILER_SIZE)
+            .putLong(dataLength)
+            .putInt((int) crc.getValue())
+            .array());
+        out.getChannel().force(true);
+        out.close();
+        put(key, tempFile);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void abort() {
+      failed = true;
+      discard();
+    }
+
+    private void ensureOpen() throws IOException {
+      if (out == null) {
+        tempFile = File.createTempFile(key, TEMP_SUFFIX, directory);
+        out = new FileOutputStream(tempFile);
+      }
+    }
+
+    private void fail(IOException e) {
+      logger.log(Level.WARNING, "Unable to write cache entry " + key, e);
+      abort();
+    }
+
+    private void discard() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Nothing more we can do.
+        }
+      }
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package uk.co.familystock.mxptool;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Provides the standard {@link CompressionStrategy} implementations.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class CompressionStrategies {
+
+  /**
+   * Extensions of file formats that are already compressed, so gain next to
+   * nothing from being compressed again.
+   */
+  public static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of(
+      "png", "jpg", "jpeg", "gif", "zip", "swc", "jar", "mxp", "zxp", "gz", "mp3", "flv", "f4v",
+      "mp4");
+
+  // Shannon entropy, in bits per byte, above which data is treated as being
+  // incompressible. Random data sits just below 8.
+  private static final double INCOMPRESSIBLE_ENTROPY = 7.5;
+
+  // Lookup table of n * log2(n) so that estimating the entropy of a block
+  // does not need a logarithm per byte value.
+  private static final double[] N_LOG2_N = new double[BlockCompressionPipeline.BLOCK_SIZE + 1];
+  static {
+    for (int n = 1; n < N_LOG2_N.length; n++) {
+      N_LOG2_N[n] = n * log2(n);
+    }
+  }
+
+  private static final CompressionStrategy ADAPTIVE = new AdaptiveStrategy();
+
+  private CompressionStrategies() {
+    // Static utility class.
+  }
+
+  /**
+   * Gets a strategy that compresses everything at the given level. Using
+   * {@link Deflater#BEST_COMPRESSION} matches the behaviour of the Adobe
+   * Extension Manager.
+   */
+  public static CompressionStrategy fixed(int level) {
+    Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION
+        && level <= Deflater.BEST_COMPRESSION, "Invalid compression level %s", level);
+    return new FixedStrategy(level);
+  }
+
+  /**
+   * Gets a strategy that stores data that is unlikely to compress, and
+   * otherwise compresses at {@link Deflater#BEST_COMPRESSION}.
+   *
+   * <p>Entries are stored if their extension is one of
+   * {@link #COMPRESSED_EXTENSIONS}, if they are compressed SWF files, or if a
+   * sample of their data looks random. Blocks of other entries are likewise
+   * stored if their data looks random.
+   */
+  public static CompressionStrategy adaptive() {
+    return ADAPTIVE;
+  }
+
+  /**
+   * Estimates the Shannon entropy of the given data, in bits per byte.
+   */
+  static double estimateEntropy(byte[] data, int offset, int length) {
+    if (length == 0) {
+      return 0;
+    }
+    int[] counts = new int[256];
+    for (int i = offset; i < offset + length; i++) {
+      counts[data[i] & 0xff]++;
+    }
+    // H = log2(N) - (1/N) * sum(c * log2(c))
+    double sum = 0;
+    for (int count : counts) {
+      sum += count < N_LOG2_N.length ? N_LOG2_N[count] : count * log2(count);
+    }
+    return log2(length) - sum / length;
+  }
+
+  private static double log2(double val) {
+    return Math.log(val) / Math.log(2);
+  }
+
+  private static final class FixedStrategy implements CompressionStrategy {
+
+    private final int level;
+
+    private FixedStrategy(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public int getEntryLevel(String path, byte[] sample, int sampleLength) {
+      return level;
+    }
+
+    @Override
+    public int getBlockLevel(int entryLevel, byte[] data, int offset, int length) {
+      return entryLevel;
+    }
+
+    @Override
+    public String getId() {
+      return "fixed(" + level + ")";
+    }
+
+    @Override
+    public String toString() {
+      return getId();
+    }
+  }
+
+  private static final class AdaptiveStrategy implements CompressionStrategy {
+
+    @Override
+    public int getEntryLevel(String path, byte[] sample, int sampleLength) {
+      String extension = getExtension(path);
+      if (COMPRESSED_EXTENSIONS.contains(extension)) {
+        return Deflater.NO_COMPRESSION;
+      }
+      // SWF files start with FWS if uncompressed, or CWS/ZWS if compressed
+      // with zlib/LZMA.
+      if ("swf".equals(extension) && sampleLength >= 3
+          && (sample[0] == 'C' || sample[0] == 'Z') && sample[1] == 'W' && sample[2] == 'S') {
+        return Deflater.NO_COMPRESSION;
+      }
+      if (estimateEntropy(sample, 0, sampleLength) > INCOMPRESSIBLE_ENTROPY) {
+        return Deflater.NO_COMPRESSION;
+      }
+      return Deflater.BEST_COMPRESSION;
+    }
+
+    @Override
+    public int getBlockLevel(int entryLevel, byte[] data, int offset, int length) {
+      if (entryLevel != Deflater.NO_COMPRESSION
+          && estimateEntropy(data, offset, length) > INCOMPRESSIBLE_ENTROPY) {
+        return Deflater.NO_COMPRESSION;
+      }
+      return entryLevel;
+    }
+
+    private static String getExtension(String path) {
+      int dot = path.lastIndexOf('.');
+      if (dot < 0 || dot < Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'))) {
+        return "";
+      }
+      return path.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String getId() {
+      // Change the version whenever the heuristics change, so that data cached
+      // using the old ones is no longer used.
+      return "adaptive-2";
+    }
+
+    @Override
+    public String toString() {
+      return getId();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package uk.co.familystock.mxptool;
+
+/**
+ * Decides how hard to compress the file data written to an MXP archive.
+ *
+ * <p>A level is chosen for each entry from its path and a sample of its data,
+ * and may then be adjusted for each block of the entry. Levels are those used
+ * by {@link java.util.zip.Deflater}, so a block given
+ * {@link java.util.zip.Deflater#NO_COMPRESSION} is stored as is. Block levels
+ * are chosen on the compression threads, so implementations must be
+ * thread-safe. See {@link CompressionStrategies} for the standard strategies.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public interface CompressionStrategy {
+
+  /**
+   * Chooses the compression level for an entry.
+   *
+   * @param path the path of the entry as listed in the MXI
+   * @param sample the start of the entry's data
+   * @param sampleLength the number of bytes of {@code sample} holding data,
+   *     which may be 0 for an empty entry
+   * @return a compression level between 0 and 9, or -1 for the default level
+   */
+  int getEntryLevel(String path, byte[] sample, int sampleLength);
+
+  /**
+   * Chooses the compression level for a single block of an entry.
+   *
+   * @param entryLevel the level chosen for the entry by
+   *     {@link #getEntryLevel(String, byte[], int)}
+   * @param data array holding the uncompressed block
+   * @param offset offset of the block within {@code data}
+   * @param length length of the block
+   * @return a compression level between 0 and 9, or -1 for the default level
+   */
+  int getBlockLevel(int entryLevel, byte[] data, int offset, int length);
+
+  /**
+   * Gets an identifier for the choices made by this strategy, used as part of
+   * the key for data held in a {@link CompressedDataCache}. Strategies that may
+   * choose different levels for the same entry must have different identifiers.
+   */
+  String getId();
+}
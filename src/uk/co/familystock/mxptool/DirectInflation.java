@@ -0,0 +1,87 @@
+package uk.co.familystock.mxptool;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Gives access to the {@code ByteBuffer} methods of {@link Inflater}, which
+ * let compressed data be read straight from a mapping of the archive and
+ * decompressed straight into the caller's buffer without passing through
+ * arrays on the way.
+ *
+ * <p>The methods only exist on Java 11 and later, so are looked up when first
+ * needed. Callers must check {@link #isAvailable()} and fall back to copying
+ * via arrays when running on older JVMs.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class DirectInflation {
+
+  // Inflater.setInput(ByteBuffer) and Inflater.inflate(ByteBuffer).
+  private static final MethodHandle SET_INPUT;
+  private static final MethodHandle INFLATE;
+
+  static {
+    MethodHandle setInput = null;
+    MethodHandle inflate = null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      setInput = lookup.findVirtual(Inflater.class, "setInput",
+          MethodType.methodType(void.class, ByteBuffer.class));
+      inflate = lookup.findVirtual(Inflater.class, "inflate",
+          MethodType.methodType(int.class, ByteBuffer.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      // Older JVM, so everything has to go via arrays.
+      setInput = null;
+      inflate = null;
+    }
+    SET_INPUT = setInput;
+    INFLATE = inflate;
+  }
+
+  private DirectInflation() {
+    // Class designed to be used statically.
+  }
+
+  /**
+   * Whether the JVM supports handing buffers straight to an inflater.
+   */
+  static boolean isAvailable() {
+    return SET_INPUT != null;
+  }
+
+  /**
+   * Sets the remaining bytes of {@code input} as the inflater's input. The
+   * inflater reads from the buffer as it goes, so it must be left untouched
+   * until the input has all been used or the inflater is reset.
+   */
+  static void setInput(Inflater inflater, ByteBuffer input) {
+    try {
+      SET_INPUT.invokeExact(inflater, input);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  /**
+   * Decompresses into the remaining space in {@code output}, advancing its
+   * position past the bytes written.
+   *
+   * @return the number of bytes written
+   */
+  static int inflate(Inflater inflater, ByteBuffer output) throws DataFormatException {
+    try {
+      return (int) INFLATE.invokeExact(inflater, output);
+    } catch (DataFormatException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+}
@@ -0,0 +1,377 @@
+package uk.co.familystock.mxptool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDateTime;
+import org.w3c.dom.Document;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+
+/**
+ * Builds an MXP archive entry by entry, from data held in memory or streamed
+ * from elsewhere, rather than from an MXI file and the files alongside it on
+ * disk as {@link MxpWriter} does.
+ *
+ * <p>The MXI is always the first entry of an archive, so must be written via
+ * one of the {@code writeMxi} methods before any other entries are added. It
+ * is validated in the same way as by {@link MxpWriter}, and {@link #finish()}
+ * fails if any of the files it lists have not been added. File data is
+ * compressed as it is read, so the memory used is bounded by the number of
+ * compression threads rather than the size of the entries.
+ *
+ * <pre>
+ * try (MxpArchiveBuilder builder = MxpArchiveBuilder.withChannel(channel)) {
+ *   builder.writeMxi("extension.mxi", timeStamp, mxi);
+ *   builder.addEntry("extension.swf", timeStamp, swfData);
+ *   builder.finish();
+ * }
+ * </pre>
+ *
+ * <p>The output remains owned by the caller, who is responsible for closing
+ * it once the archive has been finished. Instances are not thread-safe.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpArchiveBuilder implements Closeable {
+
+  private final OutputStream out;
+  private int mxpVersion = MxpWriter.DEFAULT_MXP_VERSION;
+  private int compressionThreads = Runtime.getRuntime().availableProcessors();
+  private CodecPool codecPool = CodecPool.getDefault();
+  private CompressionStrategy compressionStrategy =
+      CompressionStrategies.fixed(Deflater.BEST_COMPRESSION);
+  private MxpMetricsListener metricsListener = null;
+  private BlockCompressionPipeline pipeline = null;
+  private String mxiPath = null;
+  private final Set<String> mxiFilePaths = Sets.newHashSet();
+  private final Set<String> addedPaths = Sets.newHashSet();
+  private boolean finished = false;
+
+  private MxpArchiveBuilder(OutputStream out) {
+    this.out = new BufferedOutputStream(out);
+  }
+
+  /**
+   * Creates and returns an {@code MxpArchiveBuilder} writing the archive to
+   * {@code out}.
+   */
+  public static MxpArchiveBuilder withOutputStream(OutputStream out) {
+    Preconditions.checkNotNull(out, "Null output stream.");
+    return new MxpArchiveBuilder(out);
+  }
+
+  /**
+   * Creates and returns an {@code MxpArchiveBuilder} writing the archive to
+   * {@code channel}.
+   */
+  public static MxpArchiveBuilder withChannel(WritableByteChannel channel) {
+    Preconditions.checkNotNull(channel, "Null channel.");
+    return new MxpArchiveBuilder(Channels.newOutputStream(channel));
+  }
+
+  public int getMxpVersion() {
+    return mxpVersion;
+  }
+
+  /**
+   * Sets the MXP version number written to the archive, by default
+   * {@link MxpWriter#DEFAULT_MXP_VERSION}.
+   */
+  public void setMxpVersion(int mxpVersion) {
+    checkNotStarted();
+    Preconditions.checkArgument(
+        mxpVersion >= 1 && mxpVersion <= MxpWriter.MAX_SUPPORTED_MXP_VERSION,
+        "MXP version must be between 1 and %s, but was %s",
+        MxpWriter.MAX_SUPPORTED_MXP_VERSION, mxpVersion);
+    this.mxpVersion = mxpVersion;
+  }
+
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  /**
+   * Sets the number of threads used to compress file data, by default one per
+   * available processor. A value of 1 compresses all data on the thread adding
+   * the entries. The archive produced is the same regardless of the number of
+   * threads used.
+   *
+   * @param compressionThreads the number of compression threads, must be positive
+   */
+  public void setCompressionThreads(int compressionThreads) {
+    checkNotStarted();
+    Preconditions.checkArgument(compressionThreads > 0,
+        "Compression thread count must be positive, but was %s", compressionThreads);
+    this.compressionThreads = compressionThreads;
+  }
+
+  public CodecPool getCodecPool() {
+    return codecPool;
+  }
+
+  /**
+   * Sets the pool deflaters are borrowed from, by default
+   * {@link CodecPool#getDefault()}.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    checkNotStarted();
+    this.codecPool = Preconditions.checkNotNull(codecPool, "Codec pool must not be null.");
+  }
+
+  public CompressionStrategy getCompressionStrategy() {
+    return compressionStrategy;
+  }
+
+  /**
+   * Sets the strategy used to choose how hard to compress each entry, by
+   * default everything is compressed using {@link Deflater#BEST_COMPRESSION}.
+   */
+  public void setCompressionStrategy(CompressionStrategy compressionStrategy) {
+    checkNotStarted();
+    this.compressionStrategy = Preconditions.checkNotNull(
+        compressionStrategy, "Compression strategy must not be null.");
+  }
+
+  @Nullable
+  public MxpMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  /**
+   * Sets a listener to report the time taken to parse the MXI, and the sizes
+   * and compression times of the entries, to. By default nothing is measured.
+   *
+   * @param metricsListener the listener to report to, or null for none
+   */
+  public void setMetricsListener(@Nullable MxpMetricsListener metricsListener) {
+    checkNotStarted();
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * Validates the MXI read from {@code mxi} and writes it as the first entry
+   * of the archive.
+   *
+   * @param path the path of the MXI within the archive
+   * @param timeStamp the time stamp recorded for the MXI
+   * @param mxi the MXI, which is read twice, once to validate it and once to
+   *     compress it
+   * @throws IOException if read/write errors occur
+   * @throws MxiFormatException if there is an error parsing or validating the
+   *     MXI
+   */
+  public void writeMxi(String path, LocalDateTime timeStamp, ByteSource mxi)
+      throws IOException, MxiFormatException {
+    Preconditions.checkNotNull(path, "Path must not be null.");
+    Preconditions.checkNotNull(timeStamp, "Time stamp must not be null.");
+    Preconditions.checkNotNull(mxi, "MXI must not be null.");
+    Preconditions.checkState(pipeline == null, "The MXI has already been written.");
+
+    long start = metricsListener == null ? 0 : System.nanoTime();
+    List<String> filePaths;
+    try (InputStream in = mxi.openBufferedStream()) {
+      filePaths = MxpWriter.parseMxi(in);
+    }
+    if (metricsListener != null) {
+      metricsListener.mxiParsed(new File(path), filePaths.size(), System.nanoTime() - start);
+    }
+    for (String filePath : filePaths) {
+      mxiFilePaths.add(MxpEntries.localSystemPathToMxpPath(filePath));
+    }
+    mxiPath = MxpEntries.localSystemPathToMxpPath(path);
+
+    pipeline = new BlockCompressionPipeline(
+        out, compressionThreads, codecPool, compressionStrategy, metricsListener);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    MxpWriter.writeUnsignedInt8(header, mxpVersion);
+    header.write(MxpWriter.MXP_HEADER);
+    pipeline.writeRaw(header.toByteArray());
+    try (InputStream in = mxi.openStream()) {
+      writeEntry(path, timeStamp, in);
+    }
+  }
+
+  /**
+   * Validates the MXI represented by {@code mxi} and writes it, serialised
+   * using the UTF-8 encoding, as the first entry of the archive.
+   *
+   * @param path the path of the MXI within the archive
+   * @param timeStamp the time stamp recorded for the MXI
+   * @param mxi the MXI
+   * @throws IOException if write errors occur
+   * @throws MxiFormatException if there is an error validating the MXI
+   */
+  public void writeMxi(String path, LocalDateTime timeStamp, Document mxi)
+      throws IOException, MxiFormatException {
+    Preconditions.checkNotNull(mxi, "MXI must not be null.");
+    ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+    XmlUtil.writeDom(mxi, serialised);
+    writeMxi(path, timeStamp, ByteSource.wrap(serialised.toByteArray()));
+  }
+
+  /**
+   * Adds an entry to the archive, compressing the data read from {@code data}
+   * until it is exhausted. The stream is left open.
+   *
+   * @param path the path of the entry within the archive
+   * @param timeStamp the time stamp recorded for the entry
+   * @param data the file data of the entry
+   * @throws IOException if read/write errors occur
+   */
+  public void addEntry(String path, LocalDateTime timeStamp, InputStream data)
+      throws IOException {
+    Preconditions.checkNotNull(path, "Path must not be null.");
+    Preconditions.checkNotNull(timeStamp, "Time stamp must not be null.");
+    Preconditions.checkNotNull(data, "Data must not be null.");
+    Preconditions.checkState(pipeline != null,
+        "The MXI must be written before any other entries are added.");
+    Preconditions.checkState(!finished, "The archive has already been finished.");
+    String mxpPath = MxpEntries.localSystemPathToMxpPath(path);
+    Preconditions.checkArgument(!mxpPath.equals(mxiPath) && addedPaths.add(mxpPath),
+        "An entry has already been added at '%s'.", path);
+    writeEntry(path, timeStamp, data);
+  }
+
+  /**
+   * Adds an entry to the archive whose file data is the bytes remaining in
+   * {@code data}. The position of the buffer is not changed.
+   *
+   * @param path the path of the entry within the archive
+   * @param timeStamp the time stamp recorded for the entry
+   * @param data the file data of the entry
+   * @throws IOException if write errors occur
+   */
+  public void addEntry(String path, LocalDateTime timeStamp, ByteBuffer data)
+      throws IOException {
+    Preconditions.checkNotNull(data, "Data must not be null.");
+    addEntry(path, timeStamp, new ByteBufferInputStream(data.duplicate()));
+  }
+
+  /**
+   * Adds an entry to the archive whose file data is the contents of
+   * {@code file}.
+   *
+   * @param path the path of the entry within the archive
+   * @param timeStamp the time stamp recorded for the entry
+   * @param file the file to read the file data from
+   * @throws IOException if read/write errors occur
+   */
+  public void addEntry(String path, LocalDateTime timeStamp, Path file) throws IOException {
+    Preconditions.checkNotNull(file, "File must not be null.");
+    try (InputStream in = Files.newInputStream(file)) {
+      addEntry(path, timeStamp, in);
+    }
+  }
+
+  /**
+   * Adds an entry to the archive whose file data is the contents of
+   * {@code file}, using the time the file was last modified as its time stamp.
+   *
+   * @param path the path of the entry within the archive
+   * @param file the file to read the file data from
+   * @throws IOException if read/write errors occur
+   */
+  public void addEntry(String path, Path file) throws IOException {
+    Preconditions.checkNotNull(file, "File must not be null.");
+    addEntry(path, new LocalDateTime(Files.getLastModifiedTime(file).toMillis()), file);
+  }
+
+  /**
+   * Waits for all the entries added to be compressed and written, then flushes
+   * the output. The output is not closed.
+   *
+   * @throws IOException if write errors occur
+   * @throws IllegalStateException if no MXI has been written, or any of the
+   *     files it lists have not been added
+   */
+  public void finish() throws IOException {
+    Preconditions.checkState(pipeline != null, "No MXI has been written.");
+    Preconditions.checkState(!finished, "The archive has already been finished.");
+    Set<String> missing = Sets.newTreeSet(Sets.difference(mxiFilePaths, addedPaths));
+    Preconditions.checkState(missing.isEmpty(),
+        "Files listed in the MXI were not added: %s", Joiner.on(", ").join(missing));
+    pipeline.finish();
+    out.flush();
+    finished = true;
+  }
+
+  /**
+   * Releases the compression threads, discarding anything not yet written.
+   * Call {@link #finish()} first to complete the archive. The output is not
+   * closed.
+   */
+  @Override
+  public void close() {
+    if (pipeline != null) {
+      pipeline.close();
+    }
+  }
+
+  private void writeEntry(String path, LocalDateTime timeStamp, InputStream data)
+      throws IOException {
+    // As with MxpWriter, the file type data is left as 0's.
+    pipeline.writeRaw(
+        MxpWriter.encodeEntryHeader(path, timeStamp, MxpWriter.FILE_TERMINATOR));
+    pipeline.writeFileData(path, data);
+    pipeline.writeRaw(MxpWriter.FILE_TERMINATOR);
+  }
+
+  private void checkNotStarted() {
+    Preconditions.checkState(pipeline == null,
+        "Settings can't be changed once the MXI has been written.");
+  }
+
+  /**
+   * Reads the remaining bytes of a buffer, leaving the data where it is.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
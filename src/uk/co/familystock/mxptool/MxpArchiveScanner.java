@@ -0,0 +1,120 @@
+package uk.co.familystock.mxptool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Walks the headers of an MXP archive held in memory rather than reading them
+ * from the file a few bytes at a time.
+ *
+ * <p>The archive is read through its {@link ArchiveMapping}, a window at a
+ * time, keeping only the current window in use. Reads throw an
+ * {@code EOFException} if they would run past the end of the archive. The
+ * scanner must be closed once done with.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class MxpArchiveScanner implements Closeable {
+
+  private final ArchiveMapping mapping;
+  private final long size;
+  private ArchiveMapping.Reference windowReference;
+  private ByteBuffer window;
+  private long windowStart;
+  private long position = 0;
+
+  MxpArchiveScanner(ArchiveMapping mapping) throws IOException {
+    Preconditions.checkNotNull(mapping);
+    this.mapping = mapping;
+    this.size = mapping.getSize();
+    mapWindow(0);
+  }
+
+  /**
+   * Read an unsigned 16-bit integer assuming little-endian byte order.
+   */
+  int readUnsignedInt16() throws IOException {
+    ensureBytes(2);
+    int val = window.getShort((int) (position - windowStart)) & 0xffff;
+    position += 2;
+    return val;
+  }
+
+  /**
+   * Read an unsigned 32-bit integer assuming little-endian byte order.
+   */
+  long readUnsignedInt32() throws IOException {
+    ensureBytes(4);
+    long val = window.getInt((int) (position - windowStart)) & 0xffffffffL;
+    position += 4;
+    return val;
+  }
+
+  void read(byte[] b) throws IOException {
+    ensureBytes(b.length);
+    ByteBuffer data = window.duplicate();
+    data.position((int) (position - windowStart));
+    data.get(b);
+    position += b.length;
+  }
+
+  /**
+   * Moves forward {@code n} bytes. Moving beyond the end of the archive is
+   * allowed, but any following read will fail.
+   */
+  void skip(long n) {
+    position += n;
+  }
+
+  long getPosition() {
+    return position;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  boolean hasBytesRemaining() {
+    return position < size;
+  }
+
+  private void ensureBytes(int bytesExpected) throws IOException {
+    if (size - position < bytesExpected) {
+      throw new EOFException("Unexpected end of file.");
+    }
+    if (position < windowStart || position + bytesExpected > windowStart + window.limit()) {
+      mapWindow(position);
+    }
+  }
+
+  private void mapWindow(long start) throws IOException {
+    ArchiveMapping.Reference reference = mapping.retain();
+    try {
+      window = reference.slice(
+          start, Math.min(mapping.getMaxSharedSliceLength(), size - start));
+    } catch (IOException | RuntimeException e) {
+      reference.release();
+      throw e;
+    }
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    windowStart = start;
+    close();
+    windowReference = reference;
+  }
+
+  /**
+   * Releases the current window.
+   */
+  @Override
+  public void close() {
+    if (windowReference != null) {
+      windowReference.release();
+      windowReference = null;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * The outcome of writing a batch of MXP archives, as returned by
+ * {@link MxpBatchWriter#write()}.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class MxpBatchResult {
+
+  private final List<ArchiveResult> archives;
+  private final long elapsedNanos;
+
+  MxpBatchResult(List<ArchiveResult> archives, long elapsedNanos) {
+    this.archives = ImmutableList.copyOf(archives);
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Whether every archive in the batch was written.
+   */
+  public boolean isSuccessful() {
+    return getFailures().isEmpty();
+  }
+
+  /**
+   * Gets the outcome for each archive, in the order they were added to the
+   * batch.
+   */
+  public List<ArchiveResult> getArchives() {
+    return archives;
+  }
+
+  /**
+   * Gets the outcome for each archive that could not be written, in the order
+   * they were added to the batch.
+   */
+  public List<ArchiveResult> getFailures() {
+    List<ArchiveResult> failures = Lists.newArrayList();
+    for (ArchiveResult archive : archives) {
+      if (!archive.isSuccessful()) {
+        failures.add(archive);
+      }
+    }
+    return Collections.unmodifiableList(failures);
+  }
+
+  /**
+   * Gets the total size of the archives written.
+   */
+  public long getArchiveBytes() {
+    long bytes = 0;
+    for (ArchiveResult archive : archives) {
+      bytes += archive.getArchiveBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the time taken to write the whole batch.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d archives, %d bytes, %d failures",
+        archives.size(), getArchiveBytes(), getFailures().size());
+  }
+
+  /**
+   * The outcome of writing one archive in a batch.
+   */
+  public static final class ArchiveResult {
+
+    private final File mxiFile;
+    private final File mxpFile;
+    private final long sourceBytes;
+    private final long archiveBytes;
+    private final long elapsedNanos;
+    private final Exception failure;
+
+    ArchiveResult(File mxiFile, File mxpFile, long sourceBytes, long archiveBytes,
+        long elapsedNanos, @Nullable Exception failure) {
+      this.mxiFile = mxiFile;
+      this.mxpFile = mxpFile;
+      this.sourceBytes = sourceBytes;
+      this.archiveBytes = archiveBytes;
+      this.elapsedNanos = elapsedNanos;
+      this.failure = failure;
+    }
+
+    public File getMxiFile() {
+      return mxiFile;
+    }
+
+    public File getMxpFile() {
+      return mxpFile;
+    }
+
+    /**
+     * Gets the total size of the MXI and the files it lists, or 0 if the MXI
+     * could not be parsed.
+     */
+    public long getSourceBytes() {
+      return sourceBytes;
+    }
+
+    /**
+     * Gets the size of the archive written, or 0 if it could not be written.
+     */
+    public long getArchiveBytes() {
+      return archiveBytes;
+    }
+
+    /**
+     * Gets the time taken to parse the MXI and write the archive, not
+     * counting time spent waiting for other archives in the batch.
+     */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public boolean isSuccessful() {
+      return failure == null;
+    }
+
+    /**
+     * Gets the reason the archive could not be written, or null if it was.
+     */
+    @Nullable
+    public Exception getFailure() {
+      return failure;
+    }
+
+    @Override
+    public String toString() {
+      return failure == null
+          ? String.format("%s: %d bytes in %d ms", mxpFile, archiveBytes,
+              TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+          : String.format("%s: failed - %s", mxpFile, failure.getMessage());
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Writes a batch of MXP archives, each from its own MXI file, several at a
+ * time, so that packaging many extensions needs only one JVM.
+ *
+ * <p>Every MXI is parsed up front, and the archives are then written largest
+ * first by the total size of their files, so that the longest jobs do not end
+ * up running on their own at the end. The archives are shared out between a
+ * bounded number of threads via work stealing. All the writers share one
+ * {@link CodecPool}, and the MXI schema is only compiled once. A failure to
+ * write one archive does not stop the others being written, instead every
+ * outcome is reported in the {@link MxpBatchResult}.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpBatchWriter {
+
+  private static final Logger logger = Logger.getLogger(MxpBatchWriter.class.getName());
+
+  // MXI files keyed by the archive to write from them, in the order added.
+  private final Map<File, File> archives = Maps.newLinkedHashMap();
+  private int concurrency = Runtime.getRuntime().availableProcessors();
+  private int compressionThreads = 1;
+  private int mxpVersion = MxpWriter.DEFAULT_MXP_VERSION;
+  private CodecPool codecPool = CodecPool.getDefault();
+  private CompressionStrategy compressionStrategy =
+      CompressionStrategies.fixed(Deflater.BEST_COMPRESSION);
+  private CompressedDataCache cache = null;
+  private boolean writeIndex = false;
+  private MxpMetricsListener metricsListener = null;
+
+  /**
+   * Adds an archive to the batch.
+   *
+   * @param mxiFile the MXI file to write the archive from
+   * @param mxpFile the path of the archive to write
+   * @throws IllegalArgumentException if the batch already writes
+   *     {@code mxpFile}
+   */
+  public void add(File mxiFile, File mxpFile) {
+    Preconditions.checkNotNull(mxiFile, "MXI file must not be null.");
+    Preconditions.checkNotNull(mxpFile, "MXP file must not be null.");
+    File key = mxpFile.toPath().toAbsolutePath().normalize().toFile();
+    Preconditions.checkArgument(!archives.containsKey(key),
+        "The archive '%s' is already in the batch.", mxpFile.getPath());
+    archives.put(key, mxiFile);
+  }
+
+  /**
+   * Adds the archives listed in a manifest to the batch. Each line of the
+   * manifest is of the form {@code MXP_FILE=MXI_FILE}, with relative paths
+   * taken as relative to the manifest. Blank lines and lines starting with
+   * {@code #} are ignored.
+   *
+   * @throws IOException if the manifest can't be read
+   * @throws IllegalArgumentException if a line of the manifest is malformed, or
+   *     an archive is listed more than once
+   */
+  public void addManifest(File manifest) throws IOException {
+    Preconditions.checkNotNull(manifest, "Manifest must not be null.");
+    File baseDir = manifest.getAbsoluteFile().getParentFile();
+    int lineNumber = 0;
+    for (String line : Files.readLines(manifest, Charsets.UTF_8)) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int separator = line.indexOf('=');
+      Preconditions.checkArgument(separator > 0 && separator < line.length() - 1,
+          "Line %s of manifest '%s' is not of the form MXP_FILE=MXI_FILE.", lineNumber,
+          manifest.getPath());
+      add(resolve(baseDir, line.substring(separator + 1).trim()),
+          resolve(baseDir, line.substring(0, separator).trim()));
+    }
+  }
+
+  private static File resolve(File baseDir, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(baseDir, path);
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Sets the most archives written at a time, by default one per available
+   * processor. With a value of 1 the archives are written one after another
+   * on the calling thread.
+   *
+   * @param concurrency the number of archives to write at a time, must be
+   *     positive
+   */
+  public void setConcurrency(int concurrency) {
+    Preconditions.checkArgument(concurrency > 0,
+        "Concurrency must be positive, but was %s", concurrency);
+    this.concurrency = concurrency;
+  }
+
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  /**
+   * Sets the number of threads used to compress the file data of each
+   * archive, see {@link MxpWriter#setCompressionThreads(int)}. By default each
+   * archive is compressed on the thread writing it, as writing several
+   * archives at a time already keeps the processors busy.
+   */
+  public void setCompressionThreads(int compressionThreads) {
+    Preconditions.checkArgument(compressionThreads > 0,
+        "Compression thread count must be positive, but was %s", compressionThreads);
+    this.compressionThreads = compressionThreads;
+  }
+
+  public int getMxpVersion() {
+    return mxpVersion;
+  }
+
+  /**
+   * Sets the MXP version number written to the archives, by default
+   * {@link MxpWriter#DEFAULT_MXP_VERSION}.
+   */
+  public void setMxpVersion(int mxpVersion) {
+    Preconditions.checkArgument(
+        mxpVersion >= 1 && mxpVersion <= MxpWriter.MAX_SUPPORTED_MXP_VERSION,
+        "MXP version must be between 1 and %s, but was %s",
+        MxpWriter.MAX_SUPPORTED_MXP_VERSION, mxpVersion);
+    this.mxpVersion = mxpVersion;
+  }
+
+  public CodecPool getCodecPool() {
+    return codecPool;
+  }
+
+  /**
+   * Sets the pool deflaters are borrowed from by every writer in the batch,
+   * by default {@link CodecPool#getDefault()}.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = Preconditions.checkNotNull(codecPool, "Codec pool must not be null.");
+  }
+
+  public CompressionStrategy getCompressionStrategy() {
+    return compressionStrategy;
+  }
+
+  /**
+   * Sets the strategy used to choose how hard to compress each entry, see
+   * {@link MxpWriter#setCompressionStrategy(CompressionStrategy)}.
+   */
+  public void setCompressionStrategy(CompressionStrategy compressionStrategy) {
+    this.compressionStrategy = Preconditions.checkNotNull(
+        compressionStrategy, "Compression strategy must not be null.");
+  }
+
+  @Nullable
+  public CompressedDataCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Sets a cache shared by every writer in the batch, see
+   * {@link MxpWriter#setCache(CompressedDataCache)}. By default no cache is
+   * used.
+   */
+  public void setCache(@Nullable CompressedDataCache cache) {
+    this.cache = cache;
+  }
+
+  public boolean getWriteIndex() {
+    return writeIndex;
+  }
+
+  /**
+   * Sets whether an {@link MxpIndex} is written alongside each archive. Off by
+   * default.
+   */
+  public void setWriteIndex(boolean writeIndex) {
+    this.writeIndex = writeIndex;
+  }
+
+  @Nullable
+  public MxpMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  /**
+   * Sets a listener shared by every writer in the batch, see
+   * {@link MxpWriter#setMetricsListener(MxpMetricsListener)}. By default
+   * nothing is measured.
+   */
+  public void setMetricsListener(@Nullable MxpMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * Writes every archive in the batch, returning once all have been written
+   * or have failed.
+   */
+  public MxpBatchResult write() {
+    long start = System.nanoTime();
+    List<ArchiveTask> tasks = Lists.newArrayListWithCapacity(archives.size());
+    for (Map.Entry<File, File> archive : archives.entrySet()) {
+      ArchiveTask task = new ArchiveTask(archive.getValue(), archive.getKey());
+      task.prepare();
+      tasks.add(task);
+    }
+
+    final List<ArchiveTask> schedule = Lists.newArrayList(tasks);
+    Collections.sort(schedule, new Comparator<ArchiveTask>() {
+      @Override
+      public int compare(ArchiveTask o1, ArchiveTask o2) {
+        return Long.compare(o2.sourceBytes, o1.sourceBytes);
+      }
+    });
+
+    if (concurrency == 1) {
+      for (ArchiveTask task : schedule) {
+        task.compute();
+      }
+    } else {
+      // In async mode each worker takes its own tasks oldest first, as do
+      // thieves, so the archives are started in the order they are forked.
+      ForkJoinPool pool = new ForkJoinPool(
+          concurrency, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+      try {
+        pool.invoke(new RecursiveAction() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected void compute() {
+            for (ArchiveTask task : schedule) {
+              task.fork();
+            }
+            for (ArchiveTask task : schedule) {
+              task.join();
+            }
+          }
+        });
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    List<MxpBatchResult.ArchiveResult> results = Lists.newArrayListWithCapacity(tasks.size());
+    for (ArchiveTask task : tasks) {
+      results.add(new MxpBatchResult.ArchiveResult(task.mxiFile, task.mxpFile, task.sourceBytes,
+          task.archiveBytes, task.elapsedNanos, task.failure));
+    }
+    return new MxpBatchResult(results, System.nanoTime() - start);
+  }
+
+  private MxpWriter newWriter(File mxiFile) {
+    MxpWriter writer = new MxpWriter(mxiFile, mxpVersion);
+    writer.setCompressionThreads(compressionThreads);
+    writer.setCodecPool(codecPool);
+    writer.setCompressionStrategy(compressionStrategy);
+    writer.setCache(cache);
+    writer.setWriteIndex(writeIndex);
+    writer.setMetricsListener(metricsListener);
+    return writer;
+  }
+
+  /**
+   * Writes one archive of the batch, recording rather than throwing any
+   * failure.
+   */
+  private final class ArchiveTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File mxiFile;
+    private final File mxpFile;
+    private MxpWriter writer;
+    private long sourceBytes;
+    private long archiveBytes;
+    private long elapsedNanos;
+    private Exception failure;
+
+    private ArchiveTask(File mxiFile, File mxpFile) {
+      this.mxiFile = mxiFile;
+      this.mxpFile = mxpFile;
+    }
+
+    /**
+     * Parses the MXI to find out how much there is to write.
+     */
+    private void prepare() {
+      long start = System.nanoTime();
+      try {
+        writer = newWriter(mxiFile);
+        sourceBytes = writer.getSourceSize();
+      } catch (IOException | MxiFormatException | RuntimeException e) {
+        // Failures writing the archive are reported by the writer itself.
+        if (metricsListener != null) {
+          metricsListener.error(mxpFile, e);
+        }
+        fail(e);
+      }
+      elapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    protected void compute() {
+      if (failure != null) {
+        return;
+      }
+      long start = System.nanoTime();
+      try {
+        writer.write(mxpFile);
+        archiveBytes = mxpFile.length();
+      } catch (IOException | MxiFormatException | RuntimeException e) {
+        fail(e);
+      }
+      elapsedNanos += System.nanoTime() - start;
+      writer = null;
+    }
+
+    private void fail(Exception e) {
+      logger.warning("Unable to write MXP file '" + mxpFile.getPath() + "': " + e.getMessage());
+      failure = e;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package uk.co.familystock.mxptool;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Records where each block of an entry's file data starts, both within the
+ * decompressed file and within the stored data, so that any part of the file
+ * can be reached by decompressing only the block holding it.
+ *
+ * <p>The index is built from the sizes recorded ahead of each block, so no
+ * data needs to be decompressed to build it.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class MxpBlockIndex {
+
+  // Deflate can't expand data by more than this, so a block claiming more is
+  // corrupt, and is rejected before anything is allocated to hold it.
+  private static final int MAX_INFLATION_RATIO = 1032;
+
+  private final int blockCount;
+  // Offset of each block within the decompressed file, plus the file size.
+  private final long[] offsets;
+  // Position of each block's sizes within the stored file data.
+  private final int[] positions;
+  private final int[] compressedSizes;
+
+  private MxpBlockIndex(int blockCount, long[] offsets, int[] positions, int[] compressedSizes) {
+    this.blockCount = blockCount;
+    this.offsets = offsets;
+    this.positions = positions;
+    this.compressedSizes = compressedSizes;
+  }
+
+  /**
+   * Builds the index for the stored file data of an entry, running from the
+   * buffer's position to its limit. The buffer itself is left untouched.
+   *
+   * @throws MxpFormatException if the data is not a valid series of blocks
+   */
+  static MxpBlockIndex build(ByteBuffer fileData) throws MxpFormatException {
+    Preconditions.checkNotNull(fileData);
+    ByteBuffer data = fileData.slice().order(ByteOrder.LITTLE_ENDIAN);
+    // Blocks usually hold 1K each, so this is a fair estimate for compressible
+    // data, and the arrays grow if it isn't enough.
+    int capacity = Math.max(data.remaining() / 512, 16);
+    long[] offsets = new long[capacity + 1];
+    int[] positions = new int[capacity];
+    int[] compressedSizes = new int[capacity];
+    int blockCount = 0;
+    long offset = 0;
+    try {
+      while (true) {
+        int position = data.position();
+        long uncompressedBlockSize = data.getInt() & 0xffffffffL;
+        long blockSize = data.getInt() & 0xffffffffL;
+
+        // 8 consecutive 0's indicates the EOF.
+        if (uncompressedBlockSize + blockSize == 0) {
+          break;
+        }
+        if (uncompressedBlockSize > Integer.MAX_VALUE) {
+          throw new MxpFormatException("Invalid block size.");
+        }
+        if (!isPlausibleSize(uncompressedBlockSize, blockSize)) {
+          throw new MxpFormatException("Block claims " + uncompressedBlockSize
+              + " bytes from " + blockSize + " bytes of stored data.");
+        }
+        if (blockSize > data.remaining()) {
+          throw new MxpFormatException("Block extends past the end of the file data.");
+        }
+        if (blockCount == positions.length) {
+          offsets = Arrays.copyOf(offsets, blockCount * 2 + 1);
+          positions = Arrays.copyOf(positions, blockCount * 2);
+          compressedSizes = Arrays.copyOf(compressedSizes, blockCount * 2);
+        }
+        offsets[blockCount] = offset;
+        positions[blockCount] = position;
+        compressedSizes[blockCount] = (int) blockSize;
+        blockCount++;
+        offset += uncompressedBlockSize;
+        data.position(data.position() + (int) blockSize);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new MxpFormatException("Missing end of file marker.", e);
+    }
+    offsets[blockCount] = offset;
+    return new MxpBlockIndex(blockCount, offsets, positions, compressedSizes);
+  }
+
+  /**
+   * Whether {@code compressedSize} bytes of stored data, for a block or a
+   * whole file, could decompress to {@code decompressedSize} bytes, so that
+   * space can be set aside for them without trusting a corrupt header.
+   */
+  static boolean isPlausibleSize(long decompressedSize, long compressedSize) {
+    return decompressedSize <= compressedSize * MAX_INFLATION_RATIO;
+  }
+
+  int getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+   * Gets the size of the file once decompressed.
+   */
+  long getDecompressedSize() {
+    return offsets[blockCount];
+  }
+
+  /**
+   * Gets the offset within the decompressed file of the first byte held by
+   * the given block.
+   */
+  long getBlockOffset(int block) {
+    Preconditions.checkElementIndex(block, blockCount);
+    return offsets[block];
+  }
+
+  /**
+   * Gets the number of bytes the given block holds once decompressed.
+   */
+  int getBlockSize(int block) {
+    Preconditions.checkElementIndex(block, blockCount);
+    return (int) (offsets[block + 1] - offsets[block]);
+  }
+
+  /**
+   * Gets the position within the stored file data of the given block,
+   * starting with its uncompressed and compressed sizes.
+   */
+  int getBlockPosition(int block) {
+    Preconditions.checkElementIndex(block, blockCount);
+    return positions[block];
+  }
+
+  /**
+   * Gets the number of bytes the given block takes up in the stored file data,
+   * not counting its sizes.
+   */
+  int getCompressedBlockSize(int block) {
+    Preconditions.checkElementIndex(block, blockCount);
+    return compressedSizes[block];
+  }
+
+  /**
+   * Decompresses a block of the stored file data in {@code fileData}, the
+   * buffer the index was built from, into {@code output} at
+   * {@code outputOffset}. Where the JVM doesn't support handing the data
+   * straight to {@code inflater}, it is copied to {@code input} on the way, so
+   * that must hold at least {@link #getCompressedBlockSize(int)} bytes.
+   *
+   * @throws MxpFormatException if the block is corrupt
+   */
+  void inflateBlock(int block, ByteBuffer fileData, Inflater inflater, byte[] input,
+      byte[] output, int outputOffset) throws MxpFormatException {
+    inflateBlock(block, fileData, inflater, input, output, outputOffset, false);
+  }
+
+  /**
+   * Decompresses a block as {@link #inflateBlock(int, ByteBuffer, Inflater,
+   * byte[], byte[], int)} does, but only to check it, so the output goes
+   * through {@code scratch} a piece at a time however big the block claims to
+   * be.
+   *
+   * @throws MxpFormatException if the block is corrupt
+   */
+  void checkBlock(int block, ByteBuffer fileData, Inflater inflater, byte[] input,
+      byte[] scratch) throws MxpFormatException {
+    Preconditions.checkArgument(scratch.length > 0, "Empty scratch buffer");
+    inflateBlock(block, fileData, inflater, input, scratch, 0, true);
+  }
+
+  private void inflateBlock(int block, ByteBuffer fileData, Inflater inflater, byte[] input,
+      byte[] output, int outputOffset, boolean discard) throws MxpFormatException {
+    int compressedSize = getCompressedBlockSize(block);
+    int blockSize = getBlockSize(block);
+    ByteBuffer source = fileData.duplicate();
+    source.position(fileData.position() + positions[block] + 8);
+
+    inflater.reset();
+    if (DirectInflation.isAvailable()) {
+      source.limit(source.position() + compressedSize);
+      DirectInflation.setInput(inflater, source);
+    } else {
+      source.get(input, 0, compressedSize);
+      inflater.setInput(input, 0, compressedSize);
+    }
+    try {
+      int inflated = 0;
+      while (inflated < blockSize && !inflater.finished()) {
+        int count = discard
+            ? inflater.inflate(output, 0, Math.min(blockSize - inflated, output.length))
+            : inflater.inflate(output, outputOffset + inflated, blockSize - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != blockSize) {
+        throw new MxpFormatException("Block " + block + " decompressed to " + inflated
+            + " bytes rather than " + blockSize + ".");
+      }
+      checkBlockEnd(block, inflater);
+    } catch (DataFormatException e) {
+      throw new MxpFormatException("Error trying to read file data.", e);
+    }
+  }
+
+  /**
+   * Checks that the zlib stream of a block, having decompressed to the size in
+   * its header, ends there, with no stored data left over.
+   */
+  private void checkBlockEnd(int block, Inflater inflater)
+      throws DataFormatException, MxpFormatException {
+    // The end of the stream is only seen once the inflater looks past the
+    // output it was asked for, so try for one more byte.
+    byte[] extra = null;
+    while (!inflater.finished()) {
+      if (extra == null) {
+        extra = new byte[1];
+      }
+      int remaining = inflater.getRemaining();
+      if (inflater.inflate(extra) > 0) {
+        throw new MxpFormatException("Block " + block + " decompressed to more than "
+            + getBlockSize(block) + " bytes.");
+      }
+      if (inflater.needsInput() || inflater.needsDictionary()
+          || inflater.getRemaining() == remaining) {
+        break;
+      }
+    }
+    if (!inflater.finished() || inflater.getRemaining() > 0) {
+      throw new MxpFormatException("Block " + block + " does not end after "
+          + getBlockSize(block) + " bytes.");
+    }
+  }
+
+  /**
+   * Finds the block holding the byte at {@code offset} in the decompressed
+   * file.
+   *
+   * @return the index of the block, or -1 if the offset is past the end of
+   *     the file
+   */
+  int findBlock(long offset) {
+    Preconditions.checkArgument(offset >= 0, "Negative offset %s", offset);
+    if (offset >= getDecompressedSize()) {
+      return -1;
+    }
+    int block = Arrays.binarySearch(offsets, 0, blockCount, offset);
+    if (block < 0) {
+      // Not the start of a block, so in the one before the insertion point.
+      block = -block - 2;
+    }
+    // Skip past any empty blocks that share an offset with the one we want.
+    while (offsets[block + 1] <= offset) {
+      block++;
+    }
+    return block;
+  }
+}
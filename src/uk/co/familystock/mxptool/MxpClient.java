@@ -0,0 +1,316 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Sends {@code create}, {@code extract} and {@code list} commands to an
+ * {@link MxpDaemon} running on this machine, running them in-process via
+ * {@link MxpTool} instead if no daemon is running or it is too busy to queue
+ * them. Either way the results are the same, including the exceptions thrown
+ * on failure. Requests are signed with the token the daemon wrote to its
+ * token file, so a daemon run by another user, whose file can't be read, is
+ * never used. Replies must prove they were signed with the same token, or the
+ * command runs in-process, so whoever takes the port once the daemon has gone
+ * can't pass off its own replies.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpClient {
+
+  private static final Logger logger = Logger.getLogger(MxpClient.class.getName());
+
+  // Connecting over the loopback interface is near instant when a daemon is
+  // listening, so there's no point waiting long when there isn't.
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int NONCE_BYTES = 16;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final int port;
+
+  /**
+   * Creates a {@code MxpClient} sending commands to a daemon on
+   * {@link MxpDaemon#DEFAULT_PORT}.
+   */
+  public MxpClient() {
+    this(MxpDaemon.DEFAULT_PORT);
+  }
+
+  /**
+   * Creates a {@code MxpClient} sending commands to a daemon on the given port.
+   */
+  public MxpClient(int port) {
+    Preconditions.checkArgument(port > 0 && port <= 65535, "Invalid port %s", port);
+    this.port = port;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Whether a daemon is listening on the port.
+   */
+  public boolean isDaemonRunning() {
+    try {
+      String token = readToken();
+      if (token == null) {
+        return false;
+      }
+      String nonce = newNonce();
+      HttpURLConnection connection = openConnection("status", token, nonce);
+      try {
+        return connection.getResponseCode() == HttpURLConnection.HTTP_OK
+            && isFromDaemon(connection, token, nonce);
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * As {@link MxpTool#create(File, File, int)}.
+   */
+  public void create(File mxpFile, File mxiFile, int mxpVersion)
+      throws IOException, MxiFormatException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(mxiFile, "mxiFile must be non-null.");
+    ListMultimap<String, String> params = ArrayListMultimap.create();
+    params.put("mxpFile", mxpFile.getAbsolutePath());
+    params.put("mxiFile", mxiFile.getAbsolutePath());
+    params.put("mxpVersion", String.valueOf(mxpVersion));
+    Response response = send("create", params);
+    if (response == null) {
+      MxpTool.create(mxpFile, mxiFile, mxpVersion);
+    } else if (MxiFormatException.class.getName().equals(response.exceptionClass)) {
+      throw new MxiFormatException(response.body);
+    } else {
+      response.checkSuccessful();
+    }
+  }
+
+  /**
+   * As {@link MxpTool#extract(File, File, Set, int)}.
+   */
+  public void extract(File mxpFile, File targetDir, @Nullable Set<String> targetPaths,
+      int threads) throws IOException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(targetDir, "targetDir must be non-null.");
+    ListMultimap<String, String> params = ArrayListMultimap.create();
+    params.put("mxpFile", mxpFile.getAbsolutePath());
+    params.put("targetDir", targetDir.getAbsolutePath());
+    if (targetPaths != null) {
+      params.putAll("path", targetPaths);
+    }
+    params.put("threads", String.valueOf(threads));
+    Response response = send("extract", params);
+    if (response == null) {
+      MxpTool.extract(mxpFile, targetDir, targetPaths, threads);
+    } else {
+      response.checkSuccessful();
+    }
+  }
+
+  /**
+   * As {@link MxpTool#list(File, Writer, Set)}, including closing {@code out}
+   * once done.
+   */
+  public void list(File mxpFile, Writer out, @Nullable Set<String> targetPaths)
+      throws IOException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(out, "out must be non-null.");
+    ListMultimap<String, String> params = ArrayListMultimap.create();
+    params.put("mxpFile", mxpFile.getAbsolutePath());
+    if (targetPaths != null) {
+      params.putAll("path", targetPaths);
+    }
+    Response response = send("list", params);
+    if (response == null) {
+      MxpTool.list(mxpFile, out, targetPaths);
+    } else {
+      response.checkSuccessful();
+      out.write(response.body);
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the token of the daemon on the port, returning null if there is no
+   * token file that can be read, as when no daemon has been run there by this
+   * user.
+   */
+  @Nullable
+  private String readToken() throws IOException {
+    try {
+      return Files.asCharSource(MxpDaemon.getTokenFile(port), Charsets.US_ASCII).read().trim();
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static String newNonce() {
+    byte[] nonce = new byte[NONCE_BYTES];
+    random.nextBytes(nonce);
+    return BaseEncoding.base16().lowerCase().encode(nonce);
+  }
+
+  /**
+   * Whether a response proves it comes from the daemon holding the token.
+   */
+  private static boolean isFromDaemon(HttpURLConnection connection, String token,
+      String nonce) {
+    String proof = connection.getHeaderField(MxpDaemon.PROOF_HEADER);
+    return proof != null && MessageDigest.isEqual(
+        MxpDaemon.sign(token, MxpDaemon.DAEMON_PURPOSE, nonce).getBytes(Charsets.US_ASCII),
+        proof.getBytes(Charsets.US_ASCII));
+  }
+
+  private HttpURLConnection openConnection(String command, String token, String nonce)
+      throws IOException {
+    URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port,
+        "/" + command);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setUseCaches(false);
+    connection.setRequestProperty(MxpDaemon.NONCE_HEADER, nonce);
+    connection.setRequestProperty(
+        MxpDaemon.AUTH_HEADER, MxpDaemon.sign(token, MxpDaemon.CLIENT_PURPOSE, nonce));
+    return connection;
+  }
+
+  /**
+   * Sends a command to the daemon and waits for it to complete, returning
+   * null if there is no daemon or it is too busy to accept the command.
+   */
+  @Nullable
+  private Response send(String command, ListMultimap<String, String> params)
+      throws IOException {
+    StringBuilder form = new StringBuilder();
+    for (Map.Entry<String, String> param : params.entries()) {
+      if (form.length() > 0) {
+        form.append('&');
+      }
+      form.append(URLEncoder.encode(param.getKey(), "UTF-8"))
+          .append('=')
+          .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+    }
+    byte[] body = form.toString().getBytes(Charsets.UTF_8);
+
+    String token = readToken();
+    if (token == null) {
+      logger.fine("No MXP daemon token for port " + port + ", running " + command
+          + " in-process.");
+      return null;
+    }
+    String nonce = newNonce();
+    HttpURLConnection connection = openConnection(command, token, nonce);
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      try {
+        connection.connect();
+      } catch (ConnectException | SocketTimeoutException e) {
+        logger.fine("No MXP daemon on port " + port + ", running " + command + " in-process.");
+        return null;
+      }
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+
+      int status = connection.getResponseCode();
+      if (!isFromDaemon(connection, token, nonce)) {
+        logger.warning("Whatever is listening on port " + port + " can't prove it is the MXP"
+            + " daemon that wrote " + MxpDaemon.getTokenFile(port) + ", running " + command
+            + " in-process.");
+        return null;
+      }
+      if (status == HttpURLConnection.HTTP_FORBIDDEN) {
+        logger.warning("MXP daemon on port " + port + " refused " + command + ", running it"
+            + " in-process.");
+        return null;
+      }
+      if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+        logger.info("MXP daemon on port " + port + " is busy, running " + command
+            + " in-process.");
+        return null;
+      }
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      String responseBody = "";
+      if (in != null) {
+        try {
+          responseBody = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+          in.close();
+        }
+      }
+      return new Response(status, connection.getHeaderField(MxpDaemon.EXCEPTION_HEADER),
+          responseBody);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * The outcome of a command run by the daemon.
+   */
+  private static final class Response {
+
+    private final int status;
+    private final String exceptionClass;
+    private final String body;
+
+    private Response(int status, @Nullable String exceptionClass, String body) {
+      this.status = status;
+      this.exceptionClass = exceptionClass;
+      this.body = body;
+    }
+
+    /**
+     * Throws the equivalent of the exception the command failed with, if it
+     * failed.
+     */
+    private void checkSuccessful() throws IOException {
+      if (status == HttpURLConnection.HTTP_OK) {
+        return;
+      }
+      if (IllegalArgumentException.class.getName().equals(exceptionClass)) {
+        throw new IllegalArgumentException(body);
+      } else if (IllegalStateException.class.getName().equals(exceptionClass)) {
+        throw new IllegalStateException(body);
+      } else if (MxpFormatException.class.getName().equals(exceptionClass)) {
+        throw new MxpFormatException(body);
+      }
+      throw new IOException("MXP daemon failed with status " + status + ": " + body);
+    }
+  }
+}
@@ -0,0 +1,431 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link MxpTool#create}, {@link MxpTool#extract} and
+ * {@link MxpTool#list} over HTTP on the loopback interface, so that a single
+ * long-running JVM, with its compiled code, schema cache and codec pools
+ * already warm, handles every packaging request on a machine. Requests are
+ * usually sent via {@link MxpClient}.
+ *
+ * <p>Each command is a {@code POST} to {@code /create}, {@code /extract} or
+ * {@code /list} with form-encoded parameters named after those of the
+ * {@link MxpTool} methods, with every path absolute. At most a fixed number of
+ * requests are run at a time, with a bounded number more queued in the order
+ * they arrived, and any beyond that turned away with a 503 response.
+ * {@code GET /status} reports how busy the daemon is.
+ *
+ * <p>Listening on the loopback interface keeps other machines out, but not
+ * other users of this one, nor web pages open in its browsers. So at startup
+ * the daemon writes a random token to {@link #getTokenFile(int)}, readable
+ * only by the user running it. The token itself is never sent. Each request
+ * carries a fresh random nonce in its {@value #NONCE_HEADER} header, and an
+ * HMAC of it keyed with the token in its {@value #AUTH_HEADER} header. Any
+ * request without a valid one, or carrying an {@code Origin} header as
+ * browsers add to cross-site requests, is turned away with a 403 response.
+ * Every response carries a second HMAC of the nonce in its
+ * {@value #PROOF_HEADER} header. A client can check it to be sure the reply
+ * came from the daemon, rather than from whoever else took the port once the
+ * daemon had gone.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class MxpDaemon {
+
+  public static final int DEFAULT_PORT = 9797;
+  public static final int DEFAULT_MAX_QUEUED = 64;
+
+  // Names the class of exception a command failed with, so that clients can
+  // throw the same.
+  static final String EXCEPTION_HEADER = "X-Mxp-Exception";
+  // Carry the client's nonce, the client's proof that it holds the token, and
+  // the daemon's.
+  static final String NONCE_HEADER = "X-Mxp-Nonce";
+  static final String AUTH_HEADER = "X-Mxp-Auth";
+  static final String PROOF_HEADER = "X-Mxp-Proof";
+  // What each HMAC is of, so that one can't stand in for the other.
+  static final String CLIENT_PURPOSE = "client";
+  static final String DAEMON_PURPOSE = "daemon";
+
+  private static final int TOKEN_BYTES = 32;
+  private static final int MAX_NONCE_LENGTH = 64;
+  // Extracting with more threads than there are processors gains nothing, so
+  // requests can't tie up more than that each.
+  private static final int MAX_EXTRACT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  private static final Logger logger = Logger.getLogger(MxpDaemon.class.getName());
+
+  private final HttpServer server;
+  private final ThreadPoolExecutor executor;
+  private final String token;
+  private final File tokenFile;
+
+  private MxpDaemon(HttpServer server, ThreadPoolExecutor executor, String token,
+      File tokenFile) {
+    this.server = server;
+    this.executor = executor;
+    this.token = token;
+    this.tokenFile = tokenFile;
+  }
+
+  /**
+   * Gets the file holding the token for the daemon on the given port, in the
+   * {@code .mxptool} directory of the user's home directory.
+   */
+  static File getTokenFile(int port) {
+    return new File(new File(System.getProperty("user.home"), ".mxptool"),
+        "daemon-" + port + ".token");
+  }
+
+  /**
+   * Starts a daemon listening on the given port of the loopback interface.
+   *
+   * @param port the port to listen on, or 0 for any free port
+   * @param maxConcurrent the most requests to run at a time
+   * @param maxQueued the most requests to queue while others are running
+   * @throws IOException if the port can't be listened on, or the token file
+   *     can't be written
+   */
+  public static MxpDaemon start(int port, int maxConcurrent, int maxQueued) throws IOException {
+    Preconditions.checkArgument(port >= 0 && port <= 65535, "Invalid port %s", port);
+    Preconditions.checkArgument(maxConcurrent > 0,
+        "Concurrent request limit must be positive, but was %s", maxConcurrent);
+    Preconditions.checkArgument(maxQueued >= 0,
+        "Queued request limit must not be negative, but was %s", maxQueued);
+
+    BlockingQueue<Runnable> queue = maxQueued == 0
+        ? new SynchronousQueue<Runnable>()
+        : new ArrayBlockingQueue<Runnable>(maxQueued, true);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+        0, TimeUnit.MILLISECONDS, queue,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("mxp-daemon-%d").build());
+
+    HttpServer server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    byte[] tokenBytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(tokenBytes);
+    String token = BaseEncoding.base16().lowerCase().encode(tokenBytes);
+    File tokenFile = getTokenFile(server.getAddress().getPort());
+    try {
+      writeToken(tokenFile, token);
+    } catch (IOException | RuntimeException e) {
+      server.stop(0);
+      executor.shutdown();
+      throw e;
+    }
+    final MxpDaemon daemon = new MxpDaemon(server, executor, token, tokenFile);
+    server.createContext("/create", daemon.new CommandHandler() {
+      @Override
+      void run(ListMultimap<String, String> params, Writer out)
+          throws IOException, MxiFormatException {
+        MxpTool.create(getFile(params, "mxpFile"), getFile(params, "mxiFile"),
+            getInt(params, "mxpVersion", MxpWriter.DEFAULT_MXP_VERSION));
+      }
+    });
+    server.createContext("/extract", daemon.new CommandHandler() {
+      @Override
+      void run(ListMultimap<String, String> params, Writer out) throws IOException {
+        int threads = getInt(params, "threads", MAX_EXTRACT_THREADS);
+        Preconditions.checkArgument(threads > 0, "threads must be positive, but was %s", threads);
+        MxpTool.extract(getFile(params, "mxpFile"), getFile(params, "targetDir"),
+            getTargetPaths(params), Math.min(threads, MAX_EXTRACT_THREADS));
+      }
+    });
+    server.createContext("/list", daemon.new CommandHandler() {
+      @Override
+      void run(ListMultimap<String, String> params, Writer out) throws IOException {
+        MxpTool.list(getFile(params, "mxpFile"), out, getTargetPaths(params));
+      }
+    });
+    server.createContext("/status", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if (daemon.checkAuthorized(exchange)) {
+          daemon.respond(exchange, 200, null, daemon.getStatus());
+        }
+      }
+    });
+    // Requests are accepted on the server's own thread, and handed on to the
+    // executor from there.
+    server.setExecutor(null);
+    server.start();
+    logger.info("MXP daemon listening on " + server.getAddress());
+    return daemon;
+  }
+
+  /**
+   * Gets the port the daemon is listening on.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Describes how many requests are running and queued.
+   */
+  public String getStatus() {
+    return String.format("%d running, %d queued, %d completed",
+        executor.getActiveCount(), executor.getQueue().size(), executor.getCompletedTaskCount());
+  }
+
+  /**
+   * Stops the daemon, waiting up to {@code delaySeconds} for requests already
+   * running or queued to complete. Any requests arriving meanwhile are turned
+   * away.
+   */
+  public void stop(int delaySeconds) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(delaySeconds, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      server.stop(0);
+      if (!tokenFile.delete() && tokenFile.exists()) {
+        logger.warning("Unable to delete " + tokenFile);
+      }
+    }
+  }
+
+  /**
+   * Writes the token to a new file readable and writable only by its owner,
+   * replacing any left by an earlier daemon.
+   */
+  private static void writeToken(File tokenFile, String token) throws IOException {
+    Path path = tokenFile.toPath();
+    Files.deleteIfExists(path);
+    if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      // Created with their permissions, so the token is never readable by
+      // others.
+      Files.createDirectories(path.getParent(),
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      Files.createFile(path,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createDirectories(path.getParent());
+      Files.createFile(path);
+      if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)
+          || !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+        throw new IOException("Unable to restrict access to " + tokenFile);
+      }
+    }
+    Files.write(path, token.getBytes(Charsets.US_ASCII));
+  }
+
+  /**
+   * Signs a nonce with the token, as HMAC-SHA256 of the purpose and nonce.
+   *
+   * @param token the daemon's token, as written to its token file
+   * @param purpose {@link #CLIENT_PURPOSE} or {@link #DAEMON_PURPOSE}
+   * @return the HMAC, in lowercase hex
+   */
+  static String sign(String token, String purpose, String nonce) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(token.getBytes(Charsets.US_ASCII), "HmacSHA256"));
+      return BaseEncoding.base16().lowerCase().encode(
+          mac.doFinal((purpose + ":" + nonce).getBytes(Charsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      // Every JVM is required to support HmacSHA256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks that a request carries a valid signature for its nonce and no
+   * {@code Origin} header, turning it away with a 403 response if not.
+   */
+  private boolean checkAuthorized(HttpExchange exchange) throws IOException {
+    if (exchange.getRequestHeaders().containsKey("Origin")) {
+      respond(exchange, 403, null, "Requests from browsers are not accepted.");
+      return false;
+    }
+    String nonce = getNonce(exchange);
+    String auth = exchange.getRequestHeaders().getFirst(AUTH_HEADER);
+    // Compared in constant time, so a signature can't be guessed a byte at a
+    // time from how long the comparison takes.
+    if (nonce == null || auth == null || !MessageDigest.isEqual(
+        sign(token, CLIENT_PURPOSE, nonce).getBytes(Charsets.US_ASCII),
+        auth.getBytes(Charsets.US_ASCII))) {
+      respond(exchange, 403, null, "Missing or incorrect " + AUTH_HEADER + " header.");
+      return false;
+    }
+    return true;
+  }
+
+  private static File getFile(ListMultimap<String, String> params, String name) {
+    List<String> values = params.get(name);
+    Preconditions.checkArgument(values.size() == 1, "Exactly one %s must be given.", name);
+    File file = new File(values.get(0));
+    // The daemon's working directory is unlikely to be the client's.
+    Preconditions.checkArgument(file.isAbsolute(), "%s must be an absolute path.", name);
+    return file;
+  }
+
+  private static int getInt(ListMultimap<String, String> params, String name, int defaultValue) {
+    List<String> values = params.get(name);
+    if (values.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(values.get(0));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " must be a number.", e);
+    }
+  }
+
+  private static Set<String> getTargetPaths(ListMultimap<String, String> params) {
+    List<String> values = params.get("path");
+    return values.isEmpty() ? null : Sets.newLinkedHashSet(values);
+  }
+
+  /**
+   * Decodes the form-encoded parameters in the body of a request.
+   */
+  private static ListMultimap<String, String> readParams(InputStream in) throws IOException {
+    String body = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    ListMultimap<String, String> params = ArrayListMultimap.create();
+    for (String param : Splitter.on('&').omitEmptyStrings().split(body)) {
+      int separator = param.indexOf('=');
+      Preconditions.checkArgument(separator > 0, "Malformed parameter '%s'.", param);
+      params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+          URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  @Nullable
+  private static String getNonce(HttpExchange exchange) {
+    String nonce = exchange.getRequestHeaders().getFirst(NONCE_HEADER);
+    return nonce == null || nonce.isEmpty() || nonce.length() > MAX_NONCE_LENGTH ? null : nonce;
+  }
+
+  /**
+   * Sends the response to a request, signing its nonce, if it has one, to
+   * prove the response comes from the daemon.
+   */
+  private void respond(HttpExchange exchange, int status, Exception failure, String body)
+      throws IOException {
+    try {
+      byte[] bytes = body.getBytes(Charsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+      String nonce = getNonce(exchange);
+      if (nonce != null) {
+        exchange.getResponseHeaders().set(PROOF_HEADER, sign(token, DAEMON_PURPOSE, nonce));
+      }
+      if (failure != null) {
+        exchange.getResponseHeaders().set(EXCEPTION_HEADER, failure.getClass().getName());
+      }
+      exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+      if (bytes.length > 0) {
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Queues requests for a command to be run by the executor, turning them
+   * away if the queue is full.
+   */
+  private abstract class CommandHandler implements HttpHandler {
+
+    /**
+     * Runs the command, writing anything it prints to {@code out}.
+     */
+    abstract void run(ListMultimap<String, String> params, Writer out)
+        throws IOException, MxiFormatException;
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+      if (!checkAuthorized(exchange)) {
+        return;
+      }
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, null, "Commands must be sent using POST.");
+        return;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            process(exchange);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        respond(exchange, 503, null, "Too many requests queued, " + getStatus() + ".");
+      }
+    }
+
+    private void process(HttpExchange exchange) {
+      try {
+        StringWriter out = new StringWriter();
+        int status = 200;
+        Exception failure = null;
+        try {
+          run(readParams(exchange.getRequestBody()), out);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          status = 400;
+          failure = e;
+        } catch (IOException | MxiFormatException | RuntimeException e) {
+          logger.log(Level.WARNING, "Request to " + exchange.getRequestURI() + " failed", e);
+          status = 500;
+          failure = e;
+        }
+        respond(exchange, status, failure,
+            failure == null ? out.toString() : String.valueOf(failure.getMessage()));
+      } catch (IOException e) {
+        // The client has most likely gone away.
+        logger.log(Level.FINE, "Unable to respond to " + exchange.getRequestURI(), e);
+      }
+    }
+  }
+}
@@ -26,6 +26,7 @@ public final class MxpEntry {
     private long decompressedSize;
     private long fileDataOffset;
     private long fileDataLength;
+    private long checksum = -1;
     
     /**
      * Prepare a basic MxpEntry ready for instantiation via {@link #build()}.
@@ -33,22 +34,37 @@ public final class MxpEntry {
      * @param filePath the path of the file represented by this entry as a 
      * non-empty String.
      * @param compressedSize the size of the file in compressed form as a
-     * positive integer.
+     * non-negative integer.
      * @param decompressedSize the size of the file when decompressed as a
-     * positive integer.
+     * non-negative integer, which is 0 for an empty file.
      */
     Builder(String filePath, long compressedSize, long decompressedSize) {
       Preconditions.checkArgument(!Strings.isNullOrEmpty(filePath),
           "Path must be a non-empty string, but was '%s'.", filePath);
-      Preconditions.checkArgument(compressedSize > 0,
-          "Invalid compressedSize, must be greater than 0 but was %s.", compressedSize);
-      Preconditions.checkArgument(decompressedSize > 0,
-          "Invalid decompressedSize, must be greater than 0 but was %s.", decompressedSize);
+      Preconditions.checkArgument(compressedSize >= 0,
+          "Invalid compressedSize, must not be negative but was %s.", compressedSize);
+      Preconditions.checkArgument(decompressedSize >= 0,
+          "Invalid decompressedSize, must not be negative but was %s.", decompressedSize);
       this.filePath = filePath;
       this.compressedSize = compressedSize;
       this.decompressedSize = decompressedSize;
     }
     
+    /**
+     * Prepare a basic MxpEntry whose sizes are not known, as is the case for
+     * entries read by {@link MxpStreamReader} before their data has been read.
+     * 
+     * @param filePath the path of the file represented by this entry as a 
+     * non-empty String.
+     */
+    Builder(String filePath) {
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(filePath),
+          "Path must be a non-empty string, but was '%s'.", filePath);
+      this.filePath = filePath;
+      this.compressedSize = -1;
+      this.decompressedSize = -1;
+    }
+    
     Builder timeStamp(LocalDateTime timestamp) {
       Preconditions.checkNotNull(timestamp);
       this.timestamp = timestamp;
@@ -81,6 +97,16 @@ public final class MxpEntry {
       return this;
     }
     
+    /**
+     * Set the CRC-32 of the file data for the file represented by this entry,
+     * as stored in the MXP archive.
+     */
+    Builder checksum(long checksum) {
+      Preconditions.checkArgument(checksum >= 0 && checksum <= 0xffffffffL);
+      this.checksum = checksum;
+      return this;
+    }
+    
     MxpEntry build() {
       return new MxpEntry(this);
     }
@@ -94,6 +120,7 @@ public final class MxpEntry {
   private final long decompressedSize;
   private final long fileDataOffset;
   private final long fileDataLength;
+  private final long checksum;
 
   // Private constructor as class created via Builder.
   private MxpEntry(Builder builder) {
@@ -104,6 +131,7 @@ public final class MxpEntry {
     decompressedSize = builder.decompressedSize;
     fileDataOffset = builder.fileDataOffset;
     fileDataLength = builder.fileDataLength;
+    checksum = builder.checksum;
   }
 
   public String getFilePath() {
@@ -114,10 +142,16 @@ public final class MxpEntry {
     return timestamp;
   }
   
+  /**
+   * Gets the size of the file in compressed form, or -1 if not known.
+   */
   public long getCompressedSize() {
     return compressedSize;
   }
   
+  /**
+   * Gets the size of the file when decompressed, or -1 if not known.
+   */
   public long getDecompressedSize() {
     return decompressedSize;
   }
@@ -136,6 +170,11 @@ public final class MxpEntry {
     return fileDataLength;
   }
   
+  // only used internally, -1 if not known.
+  long getChecksum() {
+    return checksum;
+  }
+  
   @Override
   public String toString() {
     return "MXP entry: " + getFilePath();
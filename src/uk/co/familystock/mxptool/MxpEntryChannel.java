@@ -0,0 +1,192 @@
+package uk.co.familystock.mxptool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A read-only channel over the decompressed contents of a file in an MXP
+ * archive, supporting random access.
+ *
+ * <p>Changing the position costs nothing by itself. Reads decompress only the
+ * block holding the current position, found via the entry's
+ * {@link MxpBlockIndex}, and the most recently decompressed block is kept so
+ * that sequential reads decompress each block once.
+ *
+ * <p>Instances are not safe for use by multiple threads at once.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class MxpEntryChannel implements SeekableByteChannel {
+
+  private ByteBuffer fileData;
+  private final MxpBlockIndex index;
+  private final CodecPool codecPool;
+  private Inflater inflater;
+  private ArchiveMapping.Reference mappingReference;
+  private MxpMetricsListener metricsListener;
+  private String metricsPath;
+  private long compressedBytesRead;
+  private long decompressedBytesRead;
+  private int blocksRead;
+  private long inflationNanos;
+
+  private long position = 0;
+  private byte[] compressedBlock = new byte[2048];
+  private byte[] block = new byte[BlockCompressionPipeline.BLOCK_SIZE];
+  private int currentBlock = -1;
+
+  /**
+   * Creates a channel reading the stored file data in {@code fileData}, from
+   * its position to its limit, using an inflater borrowed from
+   * {@code codecPool} until the channel is closed. If {@code fileData} is a
+   * slice of an {@link ArchiveMapping}, {@code mappingReference} keeps it from
+   * being released until the channel is closed.
+   */
+  MxpEntryChannel(ByteBuffer fileData, MxpBlockIndex index, CodecPool codecPool,
+      @Nullable ArchiveMapping.Reference mappingReference) {
+    Preconditions.checkNotNull(fileData);
+    Preconditions.checkNotNull(index);
+    Preconditions.checkNotNull(codecPool);
+    this.fileData = fileData.slice();
+    this.index = index;
+    this.codecPool = codecPool;
+    this.mappingReference = mappingReference;
+    inflater = codecPool.borrowInflater();
+  }
+
+  /**
+   * Sets a listener to report the amount of data read, and the time spent
+   * decompressing it, to once the channel is closed, and any failure to
+   * decompress it to.
+   *
+   * @param path the path of the entry the data belongs to, if known
+   */
+  void setMetricsListener(MxpMetricsListener metricsListener, @Nullable String path) {
+    this.metricsListener = Preconditions.checkNotNull(metricsListener);
+    this.metricsPath = path;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    checkOpen();
+    int blockNumber = index.findBlock(position);
+    if (blockNumber == -1) {
+      return -1;
+    }
+    int read = 0;
+    while (dst.hasRemaining() && blockNumber != -1) {
+      if (blockNumber != currentBlock) {
+        inflateBlock(blockNumber);
+      }
+      int blockOffset = (int) (position - index.getBlockOffset(blockNumber));
+      int length = Math.min(dst.remaining(), index.getBlockSize(blockNumber) - blockOffset);
+      dst.put(block, blockOffset, length);
+      position += length;
+      read += length;
+      decompressedBytesRead += length;
+      blockNumber = index.findBlock(position);
+    }
+    return read;
+  }
+
+  @Override
+  public long position() throws IOException {
+    checkOpen();
+    return position;
+  }
+
+  /**
+   * Sets the position to read from next. Positions past the end of the file
+   * are allowed, with reads there returning -1.
+   */
+  @Override
+  public MxpEntryChannel position(long newPosition) throws IOException {
+    checkOpen();
+    Preconditions.checkArgument(newPosition >= 0, "Negative position %s", newPosition);
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    checkOpen();
+    return index.getDecompressedSize();
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public MxpEntryChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return inflater != null;
+  }
+
+  @Override
+  public void close() {
+    if (inflater != null) {
+      codecPool.release(inflater);
+      inflater = null;
+      if (metricsListener != null) {
+        metricsListener.entryRead(metricsPath, compressedBytesRead, decompressedBytesRead,
+            blocksRead, inflationNanos);
+      }
+    }
+    if (mappingReference != null) {
+      mappingReference.release();
+      mappingReference = null;
+    }
+    fileData = null;
+    compressedBlock = null;
+    block = null;
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (inflater == null) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private void inflateBlock(int blockNumber) throws IOException {
+    int compressedSize = index.getCompressedBlockSize(blockNumber);
+    int blockSize = index.getBlockSize(blockNumber);
+    if (compressedBlock.length < compressedSize) {
+      compressedBlock = new byte[compressedSize];
+    }
+    if (block.length < blockSize) {
+      block = new byte[blockSize];
+    }
+    // Forget the old block first in case this one turns out to be corrupt.
+    currentBlock = -1;
+    if (metricsListener == null) {
+      index.inflateBlock(blockNumber, fileData, inflater, compressedBlock, block, 0);
+    } else {
+      long start = System.nanoTime();
+      try {
+        index.inflateBlock(blockNumber, fileData, inflater, compressedBlock, block, 0);
+      } catch (IOException e) {
+        metricsListener.error(null, e);
+        throw e;
+      } finally {
+        inflationNanos += System.nanoTime() - start;
+      }
+      blocksRead++;
+      compressedBytesRead += compressedSize;
+    }
+    currentBlock = blockNumber;
+  }
+}
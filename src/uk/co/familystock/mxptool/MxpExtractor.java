@@ -0,0 +1,194 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Extracts the files held in an MXP archive, optionally several at a time.
+ *
+ * <p>Files are extracted in the order their data appears in the archive, so
+ * the archive is read front to back however many threads are used. The
+ * directories needed are all created before any files are written. A failure
+ * to extract one file does not stop the others being extracted, instead all
+ * the failures are reported together once the rest are done.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpExtractor {
+
+  private static final Logger logger = Logger.getLogger(MxpExtractor.class.getName());
+
+  private final MxpReader reader;
+  private int extractionThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Creates a {@code MxpExtractor} reading files from the given reader, which
+   * must be left open until extraction is complete.
+   */
+  public MxpExtractor(MxpReader reader) {
+    this.reader = Preconditions.checkNotNull(reader, "Reader must not be null.");
+  }
+
+  public int getExtractionThreads() {
+    return extractionThreads;
+  }
+
+  /**
+   * Sets the number of threads used to extract files, by default one per
+   * available processor. With a single thread files are extracted on the
+   * calling thread.
+   *
+   * @param extractionThreads the number of extraction threads, must be positive
+   */
+  public void setExtractionThreads(int extractionThreads) {
+    Preconditions.checkArgument(extractionThreads > 0,
+        "Extraction thread count must be positive, but was %s", extractionThreads);
+    this.extractionThreads = extractionThreads;
+  }
+
+  /**
+   * Extracts every file in the archive to {@code targetDir}.
+   *
+   * @throws IOException if any of the files could not be extracted, with each
+   *     failure attached as a suppressed exception if there is more than one
+   */
+  public void extractAll(File targetDir) throws IOException {
+    extract(reader.getEntries(), targetDir);
+  }
+
+  /**
+   * Extracts the files for the given entries to {@code targetDir}, which must
+   * already exist.
+   *
+   * @throws IOException if any of the files could not be extracted, with each
+   *     failure attached as a suppressed exception if there is more than one
+   */
+  public void extract(Collection<MxpEntry> entries, File targetDir) throws IOException {
+    Preconditions.checkNotNull(entries, "Entries must not be null.");
+    Preconditions.checkNotNull(targetDir, "Target directory must not be null.");
+
+    List<MxpEntry> orderedEntries = Lists.newArrayList(entries);
+    Collections.sort(orderedEntries, new Comparator<MxpEntry>() {
+      @Override
+      public int compare(MxpEntry o1, MxpEntry o2) {
+        return Long.compare(o1.getFileDataOffset(), o2.getFileDataOffset());
+      }
+    });
+
+    createDirectories(orderedEntries, targetDir);
+
+    ExecutorService executor = extractionThreads == 1 ? null
+        : Executors.newFixedThreadPool(extractionThreads, new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("mxp-extract-%d").build());
+    List<Future<Void>> results = Lists.newArrayListWithCapacity(orderedEntries.size());
+    try {
+      for (MxpEntry entry : orderedEntries) {
+        ExtractionTask task = new ExtractionTask(entry, new File(targetDir, entry.getFilePath()));
+        if (executor == null) {
+          try {
+            results.add(Futures.immediateFuture(task.call()));
+          } catch (IOException | RuntimeException e) {
+            results.add(Futures.<Void>immediateFailedFuture(e));
+          }
+        } else {
+          results.add(executor.submit(task));
+        }
+      }
+      checkResults(orderedEntries, results);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Creates the parent directories of all the files to be extracted, so that
+   * the extraction threads don't have to race each other to create them.
+   */
+  private static void createDirectories(List<MxpEntry> entries, File targetDir)
+      throws IOException {
+    Set<File> directories = Sets.newHashSet();
+    for (MxpEntry entry : entries) {
+      directories.add(new File(targetDir, entry.getFilePath()).getParentFile());
+    }
+    for (File directory : directories) {
+      if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+        throw new IOException("Unable to create directory '" + directory.getAbsolutePath() + "'.");
+      }
+    }
+  }
+
+  private static void checkResults(List<MxpEntry> entries, List<Future<Void>> results)
+      throws IOException {
+    List<IOException> failures = Lists.newArrayList();
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        results.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for extraction.", e);
+      } catch (ExecutionException e) {
+        String path = entries.get(i).getFilePath();
+        logger.warning("Failed to extract '" + path + "' - " + e.getCause());
+        failures.add(new IOException("Failed to extract '" + path + "'.", e.getCause()));
+      }
+    }
+    if (failures.size() == 1) {
+      throw failures.get(0);
+    } else if (!failures.isEmpty()) {
+      IOException failure = new IOException("Failed to extract " + failures.size() + " of "
+          + entries.size() + " files.", failures.get(0));
+      // The first failure is already the cause.
+      for (IOException e : failures.subList(1, failures.size())) {
+        failure.addSuppressed(e);
+      }
+      throw failure;
+    }
+  }
+
+  /**
+   * Writes out the file for a single entry.
+   */
+  private class ExtractionTask implements Callable<Void> {
+
+    private final MxpEntry entry;
+    private final File target;
+
+    private ExtractionTask(MxpEntry entry, File target) {
+      this.entry = entry;
+      this.target = target;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      if (reader.getEntry(entry.getFilePath()) == null) {
+        throw new IOException("File '" + entry.getFilePath() + "' not present in MXP.");
+      }
+      try (FileOutputStream out = new FileOutputStream(target)) {
+        reader.transferEntry(entry, out.getChannel());
+      }
+      // Only now that the file has been written will the timestamp stick.
+      target.setLastModified(entry.getTimestamp().toDateTime().getMillis());
+      return null;
+    }
+  }
+}
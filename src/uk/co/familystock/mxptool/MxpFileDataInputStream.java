@@ -1,13 +1,20 @@
 package uk.co.familystock.mxptool;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
+import javax.annotation.Nullable;
+
 /**
  * Provides a means of reading a file from a series of compressed data blocks
  * in an MXP archive.
@@ -21,62 +28,188 @@ import java.util.zip.Inflater;
  */
 final class MxpFileDataInputStream extends InputStream {
   
+  // Largest buffer used when transferring data elsewhere, enough to hold many
+  // blocks at a time.
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+  
   private boolean eofReached = false;
+  private boolean blockLoaded = false;
   private boolean closed = false;
   
+  // Only one of these is set, depending on where the file data comes from.
   private ByteBuffer fileData;
+  private LittleEndianDataInputStream fileDataStream;
+  private final CodecPool codecPool;
   private Inflater inflater;
+  private ArchiveMapping.Reference mappingReference;
+  // Uncompressed size of the block currently loaded into the inflater.
+  private long loadedBlockSize;
+  
+  // Only measured if there's a listener to report to.
+  private MxpMetricsListener metricsListener;
+  private String metricsPath;
+  private long compressedBytesRead;
+  private long decompressedBytesRead;
+  private int blocksRead;
+  private long inflationNanos;
   
   private byte[] singleByteBuffer = new byte[1];
   private byte[] buffer = new byte[2048];
+  private byte[] skipBuffer;
   
   /**
    * Creates a MxpFileDataInputStream with the given ByteBuffer as the data
-   * source.
+   * source, using an inflater borrowed from the default {@link CodecPool}.
    */
   public MxpFileDataInputStream(ByteBuffer fileData) {
+    this(fileData, CodecPool.getDefault());
+  }
+  
+  /**
+   * Creates a MxpFileDataInputStream with the given ByteBuffer as the data
+   * source, using an inflater borrowed from {@code codecPool}. The inflater is
+   * handed back once the end of the data is reached or the stream is closed.
+   */
+  public MxpFileDataInputStream(ByteBuffer fileData, CodecPool codecPool) {
+    this(fileData, codecPool, null);
+  }
+  
+  /**
+   * As {@link #MxpFileDataInputStream(ByteBuffer, CodecPool)}, where
+   * {@code fileData} is a slice of an {@link ArchiveMapping} that is kept from
+   * being released by {@code mappingReference}. The reference is released at
+   * the same time as the inflater.
+   */
+  MxpFileDataInputStream(ByteBuffer fileData, CodecPool codecPool,
+      @Nullable ArchiveMapping.Reference mappingReference) {
     Preconditions.checkArgument(fileData != null);
+    Preconditions.checkArgument(codecPool != null);
     this.fileData = fileData;
-    inflater = new Inflater();
+    this.codecPool = codecPool;
+    this.mappingReference = mappingReference;
+    inflater = codecPool.borrowInflater();
+  }
+  
+  /**
+   * Creates a MxpFileDataInputStream reading the file data from {@code in},
+   * using an inflater borrowed from {@code codecPool}. Whole blocks are read
+   * from {@code in} at a time, up to and including the end of file marker, and
+   * {@code in} is left open when this stream is closed.
+   */
+  MxpFileDataInputStream(InputStream in, CodecPool codecPool) {
+    Preconditions.checkArgument(in != null);
+    Preconditions.checkArgument(codecPool != null);
+    this.fileDataStream = new LittleEndianDataInputStream(in);
+    this.codecPool = codecPool;
+    inflater = codecPool.borrowInflater();
+  }
+  
+  /**
+   * Sets a listener to report the amount of data read, and the time spent
+   * decompressing it, to once the end of the data is reached or the stream is
+   * closed.
+   * 
+   * @param path the path of the entry the data belongs to, if known
+   */
+  void setMetricsListener(MxpMetricsListener metricsListener, @Nullable String path) {
+    this.metricsListener = Preconditions.checkNotNull(metricsListener);
+    this.metricsPath = path;
+  }
+  
+  /**
+   * Whether all the file data, including the end of file marker, has been
+   * read.
+   */
+  boolean isEndOfData() {
+    return eofReached;
   }
   
   private void fill() throws IOException {
-    // First we need to read the uncompressed and compressed sizes of the 
-    // data block from the stream.
-    long uncompressedBlockSize = readUnsignedInt32();
-    long blockSize = readUnsignedInt32();
+    fill(0);
+  }
+  
+  /**
+   * Reads the next block of compressed data and hands it to the inflater,
+   * first passing over any whole blocks that fall within the next
+   * {@code skip} bytes of file data without decompressing them.
+   * 
+   * @return the number of bytes of file data passed over
+   */
+  private long fill(long skip) throws IOException {
+    long skipped = 0;
+    while (true) {
+      // First we need to read the uncompressed and compressed sizes of the 
+      // data block from the stream.
+      long uncompressedBlockSize = readUnsignedInt32();
+      long blockSize = readUnsignedInt32();
 
-    // blocksize should never be anywhere near the max integer size, but we
-    // check just in case as that is what good citizens do.
-    if (blockSize > Integer.MAX_VALUE) {
-      throw new IOException("Invalid block size.");
-    }
-    
-    // Now we check if the EOF marker has been reached (8 consecutive null
-    // bytes), and if not then decompress the block of actual file data.
-    if (uncompressedBlockSize + blockSize == 0) {
-      eofReached = true;
-    } else {
+      // blocksize should never be anywhere near the max integer size, but we
+      // check just in case as that is what good citizens do.
+      if (blockSize > Integer.MAX_VALUE) {
+        throw new IOException("Invalid block size.");
+      }
       int dataSize = (int) blockSize;
       
-      // If the byte buffer is not large enough to hold the compressed bytes,
-      // reallocate so that it is. This code should never actually fire as
-      // the blocksize should never be more than 1024 (exman chokes otherwise)
-      // but means we are safe if it is.
-      if (buffer.length < dataSize) {
-        buffer = new byte[dataSize];
+      // Now we check if the EOF marker has been reached (8 consecutive null
+      // bytes), and if not then either skip or decompress the block of actual
+      // file data.
+      if (uncompressedBlockSize + blockSize == 0) {
+        eofReached = true;
+        return skipped;
+      } else if (!MxpBlockIndex.isPlausibleSize(uncompressedBlockSize, blockSize)) {
+        throw new MxpFormatException("Block claims " + uncompressedBlockSize
+            + " bytes from " + blockSize + " bytes of stored data.");
+      } else if (skipped + uncompressedBlockSize <= skip) {
+        skipBytes(dataSize);
+        skipped += uncompressedBlockSize;
+      } else {
+        inflater.reset();
+        if (fileData != null && DirectInflation.isAvailable()) {
+          // Hand the block straight from the mapping to the inflater.
+          ByteBuffer block = fileData.duplicate();
+          block.limit(block.position() + dataSize);
+          fileData.position(block.limit());
+          DirectInflation.setInput(inflater, block);
+        } else {
+          // If the byte buffer is not large enough to hold the compressed
+          // bytes, reallocate so that it is. This code should never actually
+          // fire as the blocksize should never be more than 1024 (exman chokes
+          // otherwise) but means we are safe if it is.
+          if (buffer.length < dataSize) {
+            buffer = new byte[dataSize];
+          }
+          
+          if (fileData != null) {
+            fileData.get(buffer, 0, dataSize);
+          } else {
+            fileDataStream.readFully(buffer, 0, dataSize);
+          }
+          inflater.setInput(buffer, 0, dataSize);
+        }
+        loadedBlockSize = uncompressedBlockSize;
+        blockLoaded = true;
+        blocksRead++;
+        compressedBytesRead += dataSize;
+        return skipped;
       }
-      
-      fileData.get(buffer, 0, dataSize);
-      inflater.reset();
-      inflater.setInput(buffer, 0, dataSize);
+    }
+  }
+  
+  private void skipBytes(int count) throws IOException {
+    if (fileData != null) {
+      fileData.position(fileData.position() + count);
+    } else {
+      ByteStreams.skipFully(fileDataStream, count);
     }
   }
   
   /*
    * Read an unsigned 32-bit integer in little-endian format.
    */
-  private long readUnsignedInt32() {
+  private long readUnsignedInt32() throws IOException {
+    if (fileData == null) {
+      return fileDataStream.readInt() & 0xffffffffL;
+    }
     long val = fileData.get() & 0xff;
     val |= ((fileData.get() & 0xff) << 8);
     val |= ((fileData.get() & 0xff) << 16);
@@ -90,11 +223,29 @@ final class MxpFileDataInputStream extends InputStream {
     }
   }
   
+  private void releaseInflater() {
+    if (inflater != null) {
+      codecPool.release(inflater);
+      inflater = null;
+      if (metricsListener != null) {
+        metricsListener.entryRead(metricsPath, compressedBytesRead, decompressedBytesRead,
+            blocksRead, inflationNanos);
+      }
+    }
+    if (mappingReference != null) {
+      // The data may be unmapped from here on, so make sure it isn't touched.
+      fileData = null;
+      mappingReference.release();
+      mappingReference = null;
+    }
+  }
+  
   @Override
   public void close() {
     // free resources for GC.
     fileData = null;
-    inflater = null;
+    fileDataStream = null;
+    releaseInflater();
     closed = true;
   }
   
@@ -108,13 +259,239 @@ final class MxpFileDataInputStream extends InputStream {
     return read(b, 0, b.length);
   }
   
+  /**
+   * Skips over {@code n} bytes of file data. Only the blocks in which skipping
+   * starts and ends are decompressed, the blocks in between are passed over
+   * using their recorded sizes.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    sanityCheck();
+    long skipped = 0;
+    while (skipped < n && inflater != null) {
+      if (!eofReached && (!blockLoaded || inflater.finished())) {
+        skipped += fill(n - skipped);
+      } else {
+        if (skipBuffer == null) {
+          skipBuffer = new byte[1024];
+        }
+        int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+        if (read == -1) {
+          break;
+        }
+        skipped += read;
+      }
+    }
+    return skipped;
+  }
+  
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
     sanityCheck();
+    if (inflater == null) {
+      // Inflater already released on reaching the end of the data.
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    return inflate(b, off, len, null);
+  }
+  
+  /**
+   * Reads decompressed file data straight into {@code dst}, advancing its
+   * position past the bytes read. On Java 11 and later data is decompressed
+   * directly into direct buffers, rather than via an array.
+   * 
+   * @return the number of bytes read, or -1 if the end of the file data has
+   *     been reached
+   */
+  int read(ByteBuffer dst) throws IOException {
+    sanityCheck();
+    if (inflater == null) {
+      return -1;
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    if (dst.hasArray()) {
+      int read = inflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(), null);
+      if (read > 0) {
+        dst.position(dst.position() + read);
+      }
+      return read;
+    } else if (DirectInflation.isAvailable()) {
+      return inflate(null, 0, 0, dst);
+    } else {
+      byte[] data = new byte[Math.min(dst.remaining(), 8192)];
+      int read = inflate(data, 0, data.length, null);
+      if (read > 0) {
+        dst.put(data, 0, read);
+      }
+      return read;
+    }
+  }
+  
+  /**
+   * Reads the rest of the file data into a single array, sized up front from
+   * the block sizes where the file data comes from a {@code ByteBuffer} and
+   * every block's size is plausible.
+   * 
+   * <p>Overrides the method of the same name added to {@code InputStream} in
+   * Java 9.
+   * 
+   * @throws MxpFormatException if the file data doesn't decompress to the size
+   *     given by the block sizes
+   */
+  public byte[] readAllBytes() throws IOException {
+    sanityCheck();
+    long size = getRemainingSize();
+    if (size < 0) {
+      return ByteStreams.toByteArray(this);
+    }
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new OutOfMemoryError("File data too large to read into an array.");
+    }
+    byte[] data = new byte[(int) size];
+    int read = Math.max(readFully(data, 0, data.length), 0);
+    if (read < data.length || read() != -1) {
+      throw new MxpFormatException("File data size doesn't match its block sizes.");
+    }
+    return data;
+  }
+  
+  /**
+   * Writes the rest of the file data to {@code out}, decompressing many blocks
+   * at a time rather than one per write.
+   * 
+   * <p>Overrides the method of the same name added to {@code InputStream} in
+   * Java 9.
+   * 
+   * @return the number of bytes written
+   */
+  public long transferTo(OutputStream out) throws IOException {
+    Preconditions.checkNotNull(out);
+    sanityCheck();
+    byte[] data = new byte[getTransferBufferSize()];
+    long transferred = 0;
+    int read;
+    while ((read = readFully(data, 0, data.length)) > 0) {
+      out.write(data, 0, read);
+      transferred += read;
+    }
+    return transferred;
+  }
+  
+  /**
+   * As {@link #transferTo(OutputStream)}, writing the file data to
+   * {@code target}.
+   */
+  long transferTo(WritableByteChannel target) throws IOException {
+    Preconditions.checkNotNull(target);
+    sanityCheck();
+    byte[] data = new byte[getTransferBufferSize()];
+    long transferred = 0;
+    int read;
+    while ((read = readFully(data, 0, data.length)) > 0) {
+      ByteBuffer buffer = ByteBuffer.wrap(data, 0, read);
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+      transferred += read;
+    }
+    return transferred;
+  }
+  
+  private int getTransferBufferSize() {
+    long size = getRemainingSize();
+    return size < 0 || size > TRANSFER_BUFFER_SIZE ? TRANSFER_BUFFER_SIZE : Math.max((int) size, 1);
+  }
+  
+  /**
+   * Works out how many bytes of file data are left to be read from the block
+   * sizes, without decompressing anything.
+   * 
+   * @return the number of bytes left, or -1 if the file data comes from a
+   *     stream and so can't be looked ahead at, or a block claims more than
+   *     its stored data could hold
+   */
+  private long getRemainingSize() {
+    if (inflater == null) {
+      return 0;
+    }
+    if (fileData == null) {
+      return -1;
+    }
+    long size = blockLoaded ? loadedBlockSize - inflater.getBytesWritten() : 0;
+    if (!eofReached) {
+      ByteBuffer blocks = fileData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      while (blocks.remaining() >= 8) {
+        long uncompressedBlockSize = blocks.getInt() & 0xffffffffL;
+        long blockSize = blocks.getInt() & 0xffffffffL;
+        if (uncompressedBlockSize + blockSize == 0 || blockSize > blocks.remaining()) {
+          break;
+        }
+        if (!MxpBlockIndex.isPlausibleSize(uncompressedBlockSize, blockSize)) {
+          // Leave the corrupt block to be reported once it is reached.
+          return -1;
+        }
+        size += uncompressedBlockSize;
+        blocks.position(blocks.position() + (int) blockSize);
+      }
+    }
+    return Math.max(size, 0);
+  }
+  
+  /**
+   * Reads file data into {@code b} until {@code len} bytes have been read or
+   * the end of the data has been reached.
+   * 
+   * @return the number of bytes read, or -1 if already at the end of the data
+   */
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int read = read(b, off + total, len - total);
+      if (read == -1) {
+        return total == 0 ? -1 : total;
+      }
+      total += read;
+    }
+    return total;
+  }
+  
+  /**
+   * Decompresses data into either {@code b} or, if not null, {@code dst},
+   * loading more blocks as needed.
+   */
+  private int inflate(byte[] b, int off, int len, @Nullable ByteBuffer dst) throws IOException {
+    if (metricsListener == null) {
+      return inflateBlocks(b, off, len, dst);
+    }
+    long start = System.nanoTime();
+    try {
+      int read = inflateBlocks(b, off, len, dst);
+      if (read > 0) {
+        decompressedBytesRead += read;
+      }
+      return read;
+    } catch (IOException e) {
+      metricsListener.error(null, e);
+      throw e;
+    } finally {
+      inflationNanos += System.nanoTime() - start;
+    }
+  }
+  
+  private int inflateBlocks(byte[] b, int off, int len, @Nullable ByteBuffer dst)
+      throws IOException {
     try {
       int read;
-      while ((read = inflater.inflate(b, off, len)) == 0) {
+      while ((read = dst == null
+          ? inflater.inflate(b, off, len)
+          : DirectInflation.inflate(inflater, dst)) == 0) {
         if (eofReached) {
+          releaseInflater();
           return -1;
         }
         if (inflater.needsInput()) {
@@ -0,0 +1,238 @@
+package uk.co.familystock.mxptool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDateTime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads and writes the index files that allow an MXP archive to be opened
+ * without scanning through the whole archive.
+ * 
+ * <p>The MXP format has no central directory, so the only way to find the
+ * entries is to walk through every block of every entry. An index file, stored
+ * alongside the archive with {@link #INDEX_SUFFIX} appended to its name, holds
+ * the details of every entry along with a CRC-32 of each entry's stored data.
+ * The index records the size and modification time of the archive, along with
+ * a CRC-32 of its first and last few kilobytes, covering the archive header
+ * and the end of the last entry. It is ignored by {@link MxpReader} if any of
+ * these no longer match, so an archive rewritten at the same size within the
+ * resolution of the file system's timestamps is still caught. Writers that
+ * replace an archive without indexing it delete the index.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class MxpIndex {
+  
+  public static final String INDEX_SUFFIX = ".idx";
+  
+  private static final int MAGIC = 0x4d585049; // "MXPI"
+  private static final int VERSION = 2;
+
+  // Bytes at each end of the archive covered by the fingerprint.
+  private static final int FINGERPRINT_BYTES = 4096;
+  
+  private static final Logger logger = Logger.getLogger(MxpIndex.class.getName());
+  
+  private final byte[] mxpHeader;
+  private final List<MxpEntry> entries;
+  
+  private MxpIndex(byte[] mxpHeader, List<MxpEntry> entries) {
+    this.mxpHeader = mxpHeader;
+    this.entries = entries;
+  }
+  
+  /**
+   * Gets the index file used for the given MXP archive.
+   */
+  public static File getIndexFile(File mxpFile) {
+    return new File(mxpFile.getPath() + INDEX_SUFFIX);
+  }
+  
+  /**
+   * Deletes the index file for the given MXP archive, if there is one. Called
+   * before an archive is replaced, so that a stale index is never left behind.
+   *
+   * @throws IOException if the index exists but can't be deleted
+   */
+  static void delete(File mxpFile) throws IOException {
+    File indexFile = getIndexFile(mxpFile);
+    if (!indexFile.delete() && indexFile.exists()) {
+      throw new IOException("Unable to delete out of date index '" + indexFile.getPath() + "'.");
+    }
+  }
+  
+  /**
+   * Computes a CRC-32 of the first and last {@link #FINGERPRINT_BYTES} of the
+   * archive, which between them hold the archive header and the end of the
+   * last entry.
+   */
+  private static long fingerprint(RandomAccessFile mxpFileData) throws IOException {
+    long length = mxpFileData.length();
+    CRC32 fingerprint = new CRC32();
+    byte[] buffer = new byte[(int) Math.min(length, FINGERPRINT_BYTES)];
+    mxpFileData.seek(0);
+    mxpFileData.readFully(buffer);
+    fingerprint.update(buffer);
+    mxpFileData.seek(length - buffer.length);
+    mxpFileData.readFully(buffer);
+    fingerprint.update(buffer);
+    return fingerprint.getValue();
+  }
+  
+  /**
+   * Writes the index file for the given MXP archive, replacing any existing
+   * one. The archive must not be modified afterwards, otherwise the index will
+   * be ignored.
+   * 
+   * @throws IOException in case of a read or write error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static void write(File mxpFile) throws IOException {
+    File indexFile = getIndexFile(mxpFile);
+    File tempFile = File.createTempFile(
+        indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+    try {
+      try (MxpReader reader = new MxpReader.Builder(mxpFile).useIndex(false).build()) {
+        write(mxpFile, reader, tempFile);
+      }
+      Files.move(tempFile.toPath(), indexFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tempFile.delete();
+    }
+  }
+  
+  private static void write(File mxpFile, MxpReader reader, File indexFile) throws IOException {
+    CRC32 indexChecksum = new CRC32();
+    try (FileOutputStream fout = new FileOutputStream(indexFile)) {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new CheckedOutputStream(fout, indexChecksum)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(mxpFile.length());
+      out.writeLong(mxpFile.lastModified());
+      try (RandomAccessFile mxpFileData = new RandomAccessFile(mxpFile, "r")) {
+        out.writeInt((int) fingerprint(mxpFileData));
+      }
+      out.write(reader.getHeader());
+      out.writeInt(reader.getEntries().size());
+      
+      for (MxpEntry entry : reader.getEntries()) {
+        out.writeUTF(MxpEntries.localSystemPathToMxpPath(entry.getFilePath()));
+        LocalDateTime timestamp = entry.getTimestamp();
+        out.writeShort(timestamp.getYear());
+        out.writeByte(timestamp.getMonthOfYear());
+        out.writeByte(timestamp.getDayOfMonth());
+        out.writeByte(timestamp.getHourOfDay());
+        out.writeByte(timestamp.getMinuteOfHour());
+        out.writeByte(timestamp.getSecondOfMinute());
+        out.write(entry.getFileType());
+        out.writeLong(entry.getCompressedSize());
+        out.writeLong(entry.getDecompressedSize());
+        out.writeLong(entry.getFileDataOffset());
+        out.writeLong(entry.getFileDataLength());
+        
+        CRC32 entryChecksum = new CRC32();
+        reader.transferEntryData(entry, Channels.newChannel(
+            new CheckedOutputStream(ByteStreams.nullOutputStream(), entryChecksum)));
+        out.writeInt((int) entryChecksum.getValue());
+      }
+      
+      // Flush everything through the checksum before writing it out.
+      out.flush();
+      new DataOutputStream(fout).writeInt((int) indexChecksum.getValue());
+    }
+  }
+  
+  /**
+   * Reads the index for the given MXP archive.
+   * 
+   * @param mxpFile the archive to read the index for
+   * @param mxpFileData the open archive, used to check the index is current
+   * @return the index, or null if there is no index or it is out of date or
+   *     invalid
+   */
+  @Nullable
+  static MxpIndex read(File mxpFile, RandomAccessFile mxpFileData) {
+    File indexFile = getIndexFile(mxpFile);
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    try {
+      byte[] index = com.google.common.io.Files.toByteArray(indexFile);
+      if (index.length < 4) {
+        throw new MxpFormatException("Index file truncated.");
+      }
+      CRC32 indexChecksum = new CRC32();
+      indexChecksum.update(index, 0, index.length - 4);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+      in.skipBytes(index.length - 4);
+      if (in.readInt() != (int) indexChecksum.getValue()) {
+        throw new MxpFormatException("Index file corrupt.");
+      }
+      
+      in = new DataInputStream(new ByteArrayInputStream(index, 0, index.length - 4));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new MxpFormatException("Unrecognised index file.");
+      }
+      if (in.readLong() != mxpFileData.length() || in.readLong() != mxpFile.lastModified()
+          || (in.readInt() & 0xffffffffL) != fingerprint(mxpFileData)) {
+        logger.fine("Ignoring out of date index '" + indexFile.getPath() + "'.");
+        return null;
+      }
+      
+      byte[] mxpHeader = new byte[8];
+      in.readFully(mxpHeader);
+      int entryCount = in.readInt();
+      ImmutableList.Builder<MxpEntry> entries = ImmutableList.builder();
+      for (int i = 0; i < entryCount; i++) {
+        String path = MxpEntries.mxpPathToLocalSystemPath(in.readUTF());
+        LocalDateTime timestamp = new LocalDateTime(in.readShort(), in.readByte(),
+            in.readByte(), in.readByte(), in.readByte(), in.readByte());
+        byte[] fileTypeData = new byte[8];
+        in.readFully(fileTypeData);
+        long compressedSize = in.readLong();
+        long decompressedSize = in.readLong();
+        entries.add(new MxpEntry.Builder(path, compressedSize, decompressedSize)
+            .timeStamp(timestamp)
+            .fileTypeData(fileTypeData)
+            .fileDataOffset(in.readLong())
+            .fileDataLength(in.readLong())
+            .checksum(in.readInt() & 0xffffffffL)
+            .build());
+      }
+      return new MxpIndex(mxpHeader, entries.build());
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Ignoring invalid index '" + indexFile.getPath() + "': " + e.getMessage());
+      return null;
+    }
+  }
+  
+  byte[] getHeader() {
+    return Arrays.copyOf(mxpHeader, mxpHeader.length);
+  }
+  
+  List<MxpEntry> getEntries() {
+    return entries;
+  }
+}
@@ -0,0 +1,194 @@
+package uk.co.familystock.mxptool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Class for combining several MXP archives into one.
+ * 
+ * <p>The MXI of the first archive is used for the combined archive, with the
+ * {@code <file>} elements from the {@code <files>} sections of the other
+ * archives' MXIs added to its own. The compressed data for every other entry
+ * is copied across unchanged, so only the combined MXI needs compressing.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpMerger {
+  
+  private final List<MxpReader> readers;
+  private CodecPool codecPool = CodecPool.getDefault();
+  
+  /**
+   * Creates a {@code MxpMerger} for the given archives. The readers remain
+   * owned by the caller, who is responsible for closing them.
+   *
+   * @param readers the archives to merge, in order
+   */
+  public MxpMerger(List<MxpReader> readers) {
+    Preconditions.checkNotNull(readers, "Readers must not be null.");
+    Preconditions.checkArgument(!readers.isEmpty(), "At least one archive must be given.");
+    this.readers = ImmutableList.copyOf(readers);
+  }
+  
+  public CodecPool getCodecPool() {
+    return codecPool;
+  }
+  
+  /**
+   * Sets the pool codecs are borrowed from, by default
+   * {@link CodecPool#getDefault()}.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = Preconditions.checkNotNull(codecPool, "Codec pool must not be null.");
+  }
+  
+  /**
+   * Gets the paths of entries, other than the MXI files, present in more than
+   * one of the archives, or that clash with the MXI of the first archive.
+   */
+  public Set<String> getConflictingPaths() {
+    Set<String> seen = Sets.newHashSet();
+    // The combined archive takes its MXI from the first archive.
+    seen.add(readers.get(0).getMxiFile().getFilePath());
+    Set<String> conflicts = Sets.newTreeSet();
+    for (MxpReader reader : readers) {
+      for (MxpEntry entry : reader.getEntries()) {
+        if (!entry.equals(reader.getMxiFile()) && !seen.add(entry.getFilePath())) {
+          conflicts.add(entry.getFilePath());
+        }
+      }
+    }
+    return conflicts;
+  }
+  
+  /**
+   * Writes the combined archive to {@code mxpFile}, which may be one of the
+   * archives being merged. The archive is written to a temporary file
+   * alongside it first, and only moved into place once complete, so the
+   * sources stay intact while they are read and a failed merge leaves any
+   * existing file as it was.
+   *
+   * @throws IOException if read/write errors occur, or an MXI can't be parsed
+   * @throws IllegalStateException if any paths conflict, see
+   *     {@link #getConflictingPaths()}
+   */
+  public void write(File mxpFile) throws IOException {
+    Preconditions.checkNotNull(mxpFile, "Mxp file must not be null.");
+    Set<String> conflicts = getConflictingPaths();
+    Preconditions.checkState(conflicts.isEmpty(),
+        "Archives can't be merged as they share the paths: %s", Joiner.on(", ").join(conflicts));
+    
+    byte[] mxi = mergeMxis();
+    
+    File targetDir = mxpFile.getAbsoluteFile().getParentFile();
+    File tempFile = File.createTempFile(mxpFile.getName(), ".tmp", targetDir);
+    try {
+      write(mxi, tempFile);
+      // Any existing index would describe the old archive.
+      MxpIndex.delete(mxpFile);
+      Files.move(tempFile.toPath(), mxpFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tempFile.delete();
+    }
+  }
+  
+  private void write(byte[] mxi, File target) throws IOException {
+    MxpReader first = readers.get(0);
+    MxpEntry mxiEntry = first.getMxiFile();
+    try (FileOutputStream fout = new FileOutputStream(target);
+        BufferedOutputStream mxpArchive = new BufferedOutputStream(fout);
+        BlockCompressionPipeline pipeline = new BlockCompressionPipeline(mxpArchive, 1, codecPool,
+            CompressionStrategies.fixed(Deflater.BEST_COMPRESSION))) {
+      mxpArchive.write(first.getHeader());
+      
+      pipeline.writeRaw(MxpWriter.encodeEntryHeader(
+          mxiEntry.getFilePath(), mxiEntry.getTimestamp(), mxiEntry.getFileType()));
+      pipeline.writeFileData(mxiEntry.getFilePath(), new ByteArrayInputStream(mxi));
+      pipeline.writeRaw(MxpWriter.FILE_TERMINATOR);
+      
+      for (MxpReader reader : readers) {
+        for (MxpEntry entry : reader.getEntries()) {
+          if (entry.equals(reader.getMxiFile())) {
+            continue;
+          }
+          pipeline.writeRaw(MxpWriter.encodeEntryHeader(
+              entry.getFilePath(), entry.getTimestamp(), entry.getFileType()));
+          pipeline.flush();
+          reader.transferEntryData(entry, fout.getChannel());
+        }
+      }
+      pipeline.finish();
+    }
+  }
+  
+  /**
+   * Builds the combined MXI, returning it serialised.
+   */
+  private byte[] mergeMxis() throws IOException {
+    Document merged = parseMxi(readers.get(0));
+    Element mergedFiles = getFilesElement(merged);
+    
+    for (MxpReader reader : readers.subList(1, readers.size())) {
+      Element files = getFilesElement(parseMxi(reader));
+      // Copy the list first, as the NodeList is live.
+      List<Node> fileNodes = Lists.newArrayList();
+      NodeList children = files.getChildNodes();
+      for (int i = 0; i < children.getLength(); i++) {
+        Node child = children.item(i);
+        if (child.getNodeType() == Node.ELEMENT_NODE && "file".equals(child.getNodeName())) {
+          fileNodes.add(child);
+        }
+      }
+      for (Node file : fileNodes) {
+        mergedFiles.appendChild(merged.importNode(file, true));
+        mergedFiles.appendChild(merged.createTextNode("\n"));
+      }
+    }
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlUtil.writeDom(merged, out);
+    return out.toByteArray();
+  }
+  
+  private static Document parseMxi(MxpReader reader) throws IOException {
+    try (InputStream in = reader.getInputStream(reader.getMxiFile())) {
+      return XmlUtil.getDocumentBuilder().parse(in);
+    } catch (SAXException e) {
+      throw new IOException("Parsing of MXI file '" + reader.getMxiFile().getFilePath()
+          + "' failed - '" + e.getMessage() + "'", e);
+    }
+  }
+  
+  private static Element getFilesElement(Document mxi) {
+    NodeList files = mxi.getElementsByTagName("files");
+    if (files.getLength() > 0) {
+      return (Element) files.item(0);
+    }
+    Element element = mxi.createElement("files");
+    mxi.getDocumentElement().appendChild(element);
+    return element;
+  }
+}
@@ -0,0 +1,293 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MxpMetricsListener} that totals up everything it is told, along
+ * with histograms of how long archives and entries take, for reporting
+ * afterwards or periodically.
+ *
+ * <p>All updates are lock-free, so one aggregator can be shared by any number
+ * of readers and writers at once. The values read back are each up to date,
+ * but as they are updated independently they may not all be consistent with
+ * one another while work is still going on.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpMetricsAggregator implements MxpMetricsListener {
+
+  private final AtomicLong archivesOpened = new AtomicLong();
+  private final AtomicLong archivesWritten = new AtomicLong();
+  private final AtomicLong mxisParsed = new AtomicLong();
+  private final AtomicLong entriesRead = new AtomicLong();
+  private final AtomicLong entriesWritten = new AtomicLong();
+  private final AtomicLong compressedBytesRead = new AtomicLong();
+  private final AtomicLong decompressedBytesRead = new AtomicLong();
+  private final AtomicLong uncompressedBytesWritten = new AtomicLong();
+  private final AtomicLong compressedBytesWritten = new AtomicLong();
+  private final AtomicLong archiveBytesWritten = new AtomicLong();
+  private final AtomicLong blocksRead = new AtomicLong();
+  private final AtomicLong blocksWritten = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private final LatencyHistogram openLatency = new LatencyHistogram();
+  private final LatencyHistogram inflationLatency = new LatencyHistogram();
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+  private final LatencyHistogram compressionLatency = new LatencyHistogram();
+  private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+  @Override
+  public void archiveOpened(File mxpFile, int entryCount, long nanos) {
+    archivesOpened.incrementAndGet();
+    openLatency.record(nanos);
+  }
+
+  @Override
+  public void entryRead(@Nullable String path, long compressedBytes, long decompressedBytes,
+      int blocks, long nanos) {
+    entriesRead.incrementAndGet();
+    compressedBytesRead.addAndGet(compressedBytes);
+    decompressedBytesRead.addAndGet(decompressedBytes);
+    blocksRead.addAndGet(blocks);
+    inflationLatency.record(nanos);
+  }
+
+  @Override
+  public void mxiParsed(File mxiFile, int fileCount, long nanos) {
+    mxisParsed.incrementAndGet();
+    parseLatency.record(nanos);
+  }
+
+  @Override
+  public void entryWritten(String path, long uncompressedBytes, long compressedBytes, int blocks,
+      long nanos) {
+    entriesWritten.incrementAndGet();
+    uncompressedBytesWritten.addAndGet(uncompressedBytes);
+    compressedBytesWritten.addAndGet(compressedBytes);
+    blocksWritten.addAndGet(blocks);
+    compressionLatency.record(nanos);
+  }
+
+  @Override
+  public void archiveWritten(File mxpFile, int entryCount, long bytes, long nanos) {
+    archivesWritten.incrementAndGet();
+    archiveBytesWritten.addAndGet(bytes);
+    writeLatency.record(nanos);
+  }
+
+  @Override
+  public void error(@Nullable File mxpFile, Throwable error) {
+    errors.incrementAndGet();
+  }
+
+  public long getArchivesOpened() {
+    return archivesOpened.get();
+  }
+
+  public long getArchivesWritten() {
+    return archivesWritten.get();
+  }
+
+  public long getMxisParsed() {
+    return mxisParsed.get();
+  }
+
+  public long getEntriesRead() {
+    return entriesRead.get();
+  }
+
+  public long getEntriesWritten() {
+    return entriesWritten.get();
+  }
+
+  /**
+   * Gets the total compressed size of the file data read.
+   */
+  public long getCompressedBytesRead() {
+    return compressedBytesRead.get();
+  }
+
+  /**
+   * Gets the total size of the file data read once decompressed.
+   */
+  public long getDecompressedBytesRead() {
+    return decompressedBytesRead.get();
+  }
+
+  /**
+   * Gets the total size of the files compressed.
+   */
+  public long getUncompressedBytesWritten() {
+    return uncompressedBytesWritten.get();
+  }
+
+  /**
+   * Gets the total size of the compressed blocks written, excluding their
+   * headers.
+   */
+  public long getCompressedBytesWritten() {
+    return compressedBytesWritten.get();
+  }
+
+  /**
+   * Gets the total size of the archives written.
+   */
+  public long getArchiveBytesWritten() {
+    return archiveBytesWritten.get();
+  }
+
+  public long getBlocksRead() {
+    return blocksRead.get();
+  }
+
+  public long getBlocksWritten() {
+    return blocksWritten.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /**
+   * Gets the distribution of the times taken to open archives.
+   */
+  public LatencyHistogram getOpenLatency() {
+    return openLatency;
+  }
+
+  /**
+   * Gets the distribution of the times spent decompressing each entry read.
+   */
+  public LatencyHistogram getInflationLatency() {
+    return inflationLatency;
+  }
+
+  /**
+   * Gets the distribution of the times taken to parse and validate MXI files.
+   */
+  public LatencyHistogram getParseLatency() {
+    return parseLatency;
+  }
+
+  /**
+   * Gets the distribution of the times spent compressing each entry written.
+   */
+  public LatencyHistogram getCompressionLatency() {
+    return compressionLatency;
+  }
+
+  /**
+   * Gets the distribution of the times taken to write whole archives.
+   */
+  public LatencyHistogram getWriteLatency() {
+    return writeLatency;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("opened %d archives (%s), read %d entries, %d -> %d bytes in %d blocks"
+        + " (%s), parsed %d MXIs (%s), wrote %d archives (%s), %d entries, %d -> %d bytes in"
+        + " %d blocks (%s), %d errors",
+        getArchivesOpened(), openLatency, getEntriesRead(), getCompressedBytesRead(),
+        getDecompressedBytesRead(), getBlocksRead(), inflationLatency, getMxisParsed(),
+        parseLatency, getArchivesWritten(), writeLatency, getEntriesWritten(),
+        getUncompressedBytesWritten(), getCompressedBytesWritten(), getBlocksWritten(),
+        compressionLatency, getErrors());
+  }
+
+  /**
+   * A lock-free histogram of durations, recorded in buckets of powers of two
+   * nanoseconds. Percentiles are reported as the upper bound of the bucket
+   * they fall into, so are accurate to within a factor of two.
+   */
+  public static final class LatencyHistogram {
+
+    // Bucket i holds durations of less than 2^i nanoseconds, and at least
+    // 2^(i-1) for i > 0.
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private LatencyHistogram() {
+    }
+
+    void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(nanos));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        // Lost a race with another update, so try again.
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    public long getMeanNanos() {
+      long n = count.get();
+      return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    /**
+     * Gets an upper bound on the given percentile of the durations recorded,
+     * or 0 if none have been.
+     *
+     * @param percentile the percentile, between 0 and 100
+     */
+    public long getPercentileNanos(double percentile) {
+      Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+          "Percentile must be between 0 and 100, but was %s", percentile);
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) {
+          // Never report more than the largest duration actually seen.
+          return Math.min(i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << i, getMaxNanos());
+        }
+      }
+      return getMaxNanos();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("n=%d mean=%dus p50=%dus p99=%dus max=%dus", getCount(),
+          TimeUnit.NANOSECONDS.toMicros(getMeanNanos()),
+          TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50)),
+          TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99)),
+          TimeUnit.NANOSECONDS.toMicros(getMaxNanos()));
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package uk.co.familystock.mxptool;
+
+import java.io.File;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receives measurements from {@link MxpWriter} and {@link MxpReader}, for
+ * seeing where the time goes when packing and unpacking archives. Set one via
+ * {@link MxpWriter#setMetricsListener(MxpMetricsListener)} or
+ * {@link MxpReader.Builder#metricsListener(MxpMetricsListener)}; without one
+ * nothing is measured at all.
+ *
+ * <p>Calls are made on whichever threads do the work, often several at once,
+ * so implementations must be thread-safe and should return quickly.
+ * {@link MxpMetricsAggregator} is a ready-made implementation that totals
+ * everything up.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public interface MxpMetricsListener {
+
+  /**
+   * Called once a reader has opened an archive.
+   *
+   * @param mxpFile the archive opened
+   * @param entryCount the number of entries found, which for a reader opened
+   *     lazily is just those read so far
+   * @param nanos the time taken to open the archive, including scanning it
+   *     unless opened lazily or via an {@link MxpIndex}
+   */
+  void archiveOpened(File mxpFile, int entryCount, long nanos);
+
+  /**
+   * Called once the file data of an entry has been read from an archive. For
+   * a stream that is when the end of the data is reached or the stream is
+   * closed, whichever is first, and for a channel when it is closed. Files
+   * decompressed or verified as a whole are reported once done.
+   *
+   * @param path the path of the entry, or null if not known
+   * @param compressedBytes the number of bytes of compressed data read
+   * @param decompressedBytes the number of bytes of file data read
+   * @param blocks the number of blocks decompressed
+   * @param nanos the time spent decompressing the data
+   */
+  void entryRead(@Nullable String path, long compressedBytes, long decompressedBytes, int blocks,
+      long nanos);
+
+  /**
+   * Called once a writer or {@link MxpArchiveBuilder} has parsed and
+   * validated the MXI file for an archive.
+   *
+   * @param mxiFile the MXI file parsed, or for an {@link MxpArchiveBuilder}
+   *     its path within the archive
+   * @param fileCount the number of files listed in the MXI
+   * @param nanos the time taken to parse and validate the MXI file
+   */
+  void mxiParsed(File mxiFile, int fileCount, long nanos);
+
+  /**
+   * Called once the file data of an entry has been compressed and written to
+   * an archive. Entries whose compressed data is copied from a
+   * {@link CompressedDataCache} or another archive are not reported.
+   *
+   * @param path the path of the entry
+   * @param uncompressedBytes the size of the file
+   * @param compressedBytes the size of the compressed blocks, excluding their
+   *     headers
+   * @param blocks the number of blocks compressed
+   * @param nanos the time spent compressing the data, summed across the
+   *     compression threads
+   */
+  void entryWritten(String path, long uncompressedBytes, long compressedBytes, int blocks,
+      long nanos);
+
+  /**
+   * Called once a writer has written an archive.
+   *
+   * @param mxpFile the archive written
+   * @param entryCount the number of entries, including the MXI file
+   * @param bytes the size of the archive
+   * @param nanos the time taken to write the archive, including parsing the
+   *     MXI file
+   */
+  void archiveWritten(File mxpFile, int entryCount, long bytes, long nanos);
+
+  /**
+   * Called when reading or writing fails.
+   *
+   * @param mxpFile the archive being read or written, or null if not known
+   * @param error the reason for the failure
+   */
+  void error(@Nullable File mxpFile, Throwable error);
+}
@@ -6,11 +6,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
 
 import javax.annotation.Nullable;
 
@@ -18,7 +26,8 @@ import org.joda.time.LocalDateTime;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * Class for reading Adobe Flash MXP containers.
@@ -27,33 +36,178 @@ import com.google.common.collect.ImmutableMap;
  */
 public class MxpReader implements Closeable {
 
+  /**
+   * Helper class used to open an {@code MxpReader} with options other than
+   * those used by {@link MxpReader#withFile(File)}.
+   */
+  public static final class Builder {
+    
+    private final File mxpFile;
+    private CodecPool codecPool = CodecPool.getDefault();
+    private boolean lazy = false;
+    private boolean useIndex = true;
+    private long mappingWindowSize = ArchiveMapping.DEFAULT_WINDOW_SIZE;
+    private MxpMetricsListener metricsListener = null;
+    
+    /**
+     * Prepare to open a reader for the given MXP archive via {@link #build()}.
+     */
+    public Builder(File mxpFile) {
+      this.mxpFile = Preconditions.checkNotNull(mxpFile, "Null file.");
+    }
+    
+    /**
+     * Set the pool inflaters are borrowed from, by default
+     * {@link CodecPool#getDefault()}.
+     */
+    public Builder codecPool(CodecPool codecPool) {
+      this.codecPool = Preconditions.checkNotNull(codecPool, "Null codec pool.");
+      return this;
+    }
+    
+    /**
+     * Set whether to only read as far as the MXI file up front, finding later
+     * entries as {@link MxpReader#getEntry(String)} and
+     * {@link MxpReader#getEntries()} need them. Errors in those entries are
+     * then not reported until they are found, and the reader must not have
+     * been closed by then. Off by default.
+     */
+    public Builder lazy(boolean lazy) {
+      this.lazy = lazy;
+      return this;
+    }
+    
+    /**
+     * Set the most the archive is memory-mapped in one go, archives larger
+     * than this being mapped in windows as they are read. By default archives
+     * of up to 2GB are mapped whole.
+     */
+    public Builder mappingWindowSize(long mappingWindowSize) {
+      Preconditions.checkArgument(mappingWindowSize >= ArchiveMapping.MIN_WINDOW_SIZE
+          && mappingWindowSize <= Integer.MAX_VALUE,
+          "Mapping window size must be between %s and %s bytes, but was %s",
+          ArchiveMapping.MIN_WINDOW_SIZE, Integer.MAX_VALUE, mappingWindowSize);
+      this.mappingWindowSize = mappingWindowSize;
+      return this;
+    }
+    
+    /**
+     * Set a listener to report the time taken to open the archive, and the
+     * sizes and decompression times of entries read via
+     * {@link MxpReader#getInputStream(MxpEntry)},
+     * {@link MxpReader#readEntry(MxpEntry)},
+     * {@link MxpReader#transferEntry(MxpEntry, WritableByteChannel)},
+     * {@link MxpReader#getChannel(MxpEntry)}, the {@code decompress} methods
+     * and {@link MxpReader#verify(ForkJoinPool)}, to, along with any failures
+     * reading them. By default nothing is measured.
+     */
+    public Builder metricsListener(@Nullable MxpMetricsListener metricsListener) {
+      this.metricsListener = metricsListener;
+      return this;
+    }
+    
+    /**
+     * Set whether to take the entries from an up to date {@link MxpIndex}
+     * rather than scanning the archive, if there is one.
+     */
+    Builder useIndex(boolean useIndex) {
+      this.useIndex = useIndex;
+      return this;
+    }
+    
+    /**
+     * Opens the reader.
+     * 
+     * @throws IOException in case of a read error
+     * @throws MxpFormatException if errors are encountered reading the MXP
+     */
+    public MxpReader build() throws IOException, MxpFormatException {
+      long start = metricsListener == null ? 0 : System.nanoTime();
+      MxpReader reader;
+      try {
+        reader = open();
+      } catch (IOException | RuntimeException e) {
+        if (metricsListener != null) {
+          metricsListener.error(mxpFile, e);
+        }
+        throw e;
+      }
+      if (metricsListener != null) {
+        reader.metricsListener = metricsListener;
+        metricsListener.archiveOpened(
+            mxpFile, reader.getEntriesFound(), System.nanoTime() - start);
+      }
+      return reader;
+    }
+    
+    private MxpReader open() throws IOException {
+      RandomAccessFile mxpFileData = new RandomAccessFile(mxpFile, "r");
+      ArchiveMapping mapping = null;
+      try {
+        mapping = new ArchiveMapping(mxpFileData.getChannel(), mappingWindowSize);
+        MxpIndex index = useIndex ? MxpIndex.read(mxpFile, mxpFileData) : null;
+        if (index != null) {
+          return withIndex(index, mxpFileData, mapping, codecPool);
+        }
+        return withFileData(mxpFileData, mapping, codecPool, lazy);
+      } catch (IOException | RuntimeException e) {
+        if (mapping != null) {
+          mapping.release();
+        }
+        mxpFileData.close();
+        throw e;
+      }
+    }
+  }
+
   private final MxpEntry mxiFile;
-  private final Map<String, MxpEntry> entries;
   private final byte[] mxpHeader;
-  private final GuardedRandomAccessFileReader mxpFileReader;
+  private final RandomAccessFile mxpFileData;
+  private final ArchiveMapping mapping;
+  private final CodecPool codecPool;
+  // Set by the builder before the reader is handed out.
+  private MxpMetricsListener metricsListener = null;
+  
+  // Entries found so far, in archive order. Guarded by this, along with the
+  // scanner, which is null once the whole archive has been scanned.
+  private final Map<String, MxpEntry> entries = new LinkedHashMap<>();
+  private MxpArchiveScanner scanner;
   private boolean closed = false;
   
   /**
-   * Private constructor as entry-point is via {@link #withFile(File)}.
+   * Private constructor as entry-point is via {@link #withFile(File)} or
+   * {@link Builder}. If
+   * {@code scanner} is not null, entries after those given are found by reading
+   * on from its current position as and when they are asked for.
    */
-  private MxpReader(byte[] mxpHeader, MxpEntry mxiFile, Map<String, MxpEntry> entries,
-      GuardedRandomAccessFileReader mxpFileReader) {
+  private MxpReader(byte[] mxpHeader, MxpEntry mxiFile, Collection<MxpEntry> entries,
+      RandomAccessFile mxpFileData, ArchiveMapping mapping, CodecPool codecPool,
+      @Nullable MxpArchiveScanner scanner) throws MxpFormatException {
     Preconditions.checkNotNull(mxpHeader);
     Preconditions.checkArgument(mxpHeader.length == 8, "Mxp header must be 8 bytes long.");
     Preconditions.checkNotNull(mxiFile);
     Preconditions.checkNotNull(entries);
-    Preconditions.checkNotNull(mxpFileReader);
+    Preconditions.checkNotNull(mxpFileData);
+    Preconditions.checkNotNull(mapping);
+    Preconditions.checkNotNull(codecPool);
     
     this.mxiFile = mxiFile;
     this.mxpHeader = mxpHeader;
-    this.entries = entries;
-    this.mxpFileReader = mxpFileReader;
+    this.mxpFileData = mxpFileData;
+    this.mapping = mapping;
+    this.codecPool = codecPool;
+    this.scanner = scanner;
+    for (MxpEntry entry : entries) {
+      addEntry(entry);
+    }
   }
 
   /**
    * Gets an {@code InputStream} for reading the contents of the file denoted
    * by the given {@code MxpEntry}. Returns null if no matching entry could
-   * be found.
+   * be found. The stream borrows an inflater from the reader's
+   * {@link CodecPool}, and keeps the reader's mapping of the archive from being
+   * released, until the stream is exhausted or closed.
    * 
    * @throws IOException if an I/O error occurs
    * @throws IllegalStateException if the reader has been closed
@@ -63,15 +217,384 @@ public class MxpReader implements Closeable {
     Preconditions.checkNotNull(entry, "entry must not be null.");
     
     // Ensure we use our version.
-    entry = entries.get(entry.getFilePath());
+    entry = getEntry(entry.getFilePath());
+    
+    return entry == null ? null : openFileData(entry);
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry} into a new heap
+   * {@code ByteBuffer} of exactly the file's size, ready to be read from.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP,
+   *     or is too large to fit in a buffer
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public ByteBuffer readEntry(MxpEntry entry) throws IOException {
+    return readEntry(entry, false);
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry} into a new
+   * {@code ByteBuffer} of exactly the file's size, ready to be read from. If
+   * {@code direct} is set the buffer is a direct one, which on Java 11 and later
+   * the data is decompressed straight into.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP,
+   *     or is too large to fit in a buffer
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public ByteBuffer readEntry(MxpEntry entry, boolean direct) throws IOException {
+    MxpEntry ourEntry = getPresentEntry(entry);
+    long size = ourEntry.getDecompressedSize();
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+        "Entry '%s' is too large to read into a buffer.", entry.getFilePath());
+    if (!MxpBlockIndex.isPlausibleSize(size, ourEntry.getCompressedSize())) {
+      throw new MxpFormatException("Entry '" + entry.getFilePath() + "' claims " + size
+          + " bytes from " + ourEntry.getCompressedSize() + " bytes of stored data.");
+    }
     
-    MxpFileDataInputStream in = null;
+    ByteBuffer target = direct
+        ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+    try (MxpFileDataInputStream in = openFileData(ourEntry)) {
+      while (target.hasRemaining() && in.read(target) != -1) {
+        // Keep going until the buffer is full.
+      }
+      if (target.hasRemaining() || in.read() != -1) {
+        throw new MxpFormatException(
+            "Entry '" + entry.getFilePath() + "' does not match its recorded size.");
+      }
+    }
+    target.flip();
+    return target;
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry}, writing it to
+   * {@code target}. Many blocks are decompressed for each write, so this is
+   * cheaper than copying from {@link #getInputStream(MxpEntry)}.
+   * 
+   * @return the number of bytes written
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public long transferEntry(MxpEntry entry, WritableByteChannel target) throws IOException {
+    Preconditions.checkNotNull(target, "target must not be null.");
+    try (MxpFileDataInputStream in = openFileData(getPresentEntry(entry))) {
+      return in.transferTo(target);
+    }
+  }
+  
+  /**
+   * Opens a stream over the file data of {@code entry}, which must be one of
+   * the reader's own entries.
+   */
+  private MxpFileDataInputStream openFileData(MxpEntry entry) throws IOException {
+    ArchiveMapping.Reference reference = retainMapping();
+    try {
+      MxpFileDataInputStream in =
+          new MxpFileDataInputStream(sliceFileData(reference, entry), codecPool, reference);
+      if (metricsListener != null) {
+        in.setMetricsListener(metricsListener, entry.getFilePath());
+      }
+      return in;
+    } catch (IOException | RuntimeException e) {
+      reference.release();
+      throw e;
+    }
+  }
+  
+  /**
+   * Gets a read-only {@code SeekableByteChannel} over the contents of the file
+   * denoted by the given {@code MxpEntry}, for reading parts of the file
+   * without decompressing all that comes before them. Returns null if no
+   * matching entry could be found. The channel borrows an inflater from the
+   * reader's {@link CodecPool}, and keeps the reader's mapping of the archive
+   * from being released, until it is closed.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public SeekableByteChannel getChannel(MxpEntry entry) throws IOException {
+    Preconditions.checkState(!closed, "Mxp file closed.");
+    Preconditions.checkNotNull(entry, "entry must not be null.");
+    
+    // Ensure we use our version.
+    entry = getEntry(entry.getFilePath());
+    
+    MxpEntryChannel channel = null;
     if (entry != null) {
-      in = new MxpFileDataInputStream(
-          mxpFileReader.getChannel().map(
-              MapMode.READ_ONLY, entry.getFileDataOffset(), entry.getFileDataLength()));
+      ArchiveMapping.Reference reference = retainMapping();
+      try {
+        ByteBuffer fileData = sliceFileData(reference, entry);
+        channel = new MxpEntryChannel(fileData, buildIndex(fileData), codecPool, reference);
+        if (metricsListener != null) {
+          channel.setMetricsListener(metricsListener, entry.getFilePath());
+        }
+      } catch (IOException | RuntimeException e) {
+        reference.release();
+        throw e;
+      }
+    }
+    return channel;
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry} into a new array, spreading
+   * the work across the threads of {@code pool}.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP,
+   *     or is too large to fit in an array
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public byte[] decompress(MxpEntry entry, ForkJoinPool pool) throws IOException {
+    ArchiveMapping.Reference reference = retainMapping();
+    try {
+      ParallelEntryInflater inflater = getParallelInflater(reference, entry);
+      long size = inflater.getDecompressedSize();
+      Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+          "Entry '%s' is too large to decompress into an array.", entry.getFilePath());
+      ByteBuffer target = ByteBuffer.allocate((int) size);
+      inflater.inflate(target, pool);
+      return target.array();
+    } finally {
+      reference.release();
+    }
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry} into {@code target},
+   * starting at its position, spreading the work across the threads of
+   * {@code pool}. The position of {@code target} is advanced past the file.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP,
+   *     or there is not enough room for it in {@code target}
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public void decompress(MxpEntry entry, ByteBuffer target, ForkJoinPool pool)
+      throws IOException {
+    ArchiveMapping.Reference reference = retainMapping();
+    try {
+      getParallelInflater(reference, entry).inflate(target, pool);
+    } finally {
+      reference.release();
+    }
+  }
+  
+  /**
+   * Decompresses the file denoted by {@code entry} to the file {@code target},
+   * replacing any existing contents, spreading the work across the threads of
+   * {@code pool}.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the entry's file data is malformed
+   * @throws IllegalArgumentException if the entry is not present in the MXP
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public void decompress(MxpEntry entry, File target, ForkJoinPool pool) throws IOException {
+    Preconditions.checkNotNull(target, "target must not be null.");
+    ArchiveMapping.Reference reference = retainMapping();
+    try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+      ParallelEntryInflater inflater = getParallelInflater(reference, entry);
+      out.setLength(inflater.getDecompressedSize());
+      inflater.inflate(out.getChannel(), pool);
+    } finally {
+      reference.release();
+    }
+  }
+  
+  /**
+   * Checks that every file in the archive decompresses cleanly, without
+   * writing the decompressed data anywhere. Each file's blocks must decompress
+   * to the sizes recorded in their headers, and add up to the file's recorded
+   * size. Where the reader was opened from an {@link MxpIndex} the stored data
+   * is also checked against the index's checksums. The files, and the blocks
+   * of large files, are spread across the threads of {@code pool}.
+   * 
+   * @return the outcome of the checks, including any files that failed them
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if the archive is malformed such that its files
+   *     can't be found
+   * @throws IllegalStateException if the reader has been closed
+   */
+  public MxpVerificationResult verify(ForkJoinPool pool) throws IOException {
+    Preconditions.checkNotNull(pool, "pool must not be null.");
+    ArchiveMapping.Reference reference = retainMapping();
+    try {
+      long start = System.nanoTime();
+      Collection<MxpEntry> entries;
+      try {
+        entries = getEntries();
+      } catch (IllegalStateException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw e;
+      }
+      
+      final List<VerificationTask> tasks = Lists.newArrayListWithCapacity(entries.size());
+      for (MxpEntry entry : entries) {
+        tasks.add(new VerificationTask(entry));
+      }
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+      long elapsed = System.nanoTime() - start;
+      
+      long compressedBytes = 0;
+      long decompressedBytes = 0;
+      Map<MxpEntry, IOException> failures = Maps.newLinkedHashMap();
+      for (VerificationTask task : tasks) {
+        compressedBytes += task.entry.getCompressedSize();
+        decompressedBytes += task.entry.getDecompressedSize();
+        if (task.failure != null) {
+          failures.put(task.entry, task.failure);
+        }
+      }
+      return new MxpVerificationResult(
+          tasks.size(), compressedBytes, decompressedBytes, elapsed, failures);
+    } finally {
+      reference.release();
+    }
+  }
+  
+  private void verifyEntry(ArchiveMapping.Reference reference, MxpEntry entry)
+      throws IOException {
+    ByteBuffer fileData = sliceFileData(reference, entry);
+    if (entry.getChecksum() >= 0 && checksum(fileData.duplicate()) != entry.getChecksum()) {
+      throw new MxpFormatException("Stored data does not match the checksum in the index.");
+    }
+    MxpBlockIndex index = MxpBlockIndex.build(fileData);
+    if (index.getDecompressedSize() != entry.getDecompressedSize()) {
+      throw new MxpFormatException("Blocks add up to " + index.getDecompressedSize()
+          + " bytes, but the recorded size is " + entry.getDecompressedSize() + " bytes.");
+    }
+    ParallelEntryInflater inflater = new ParallelEntryInflater(fileData, index, codecPool);
+    if (metricsListener != null) {
+      inflater.setMetricsListener(metricsListener, entry.getFilePath());
+    }
+    inflater.verify();
+  }
+  
+  private static long checksum(ByteBuffer data) {
+    CRC32 checksum = new CRC32();
+    byte[] chunk = new byte[8192];
+    while (data.hasRemaining()) {
+      int length = Math.min(data.remaining(), chunk.length);
+      data.get(chunk, 0, length);
+      checksum.update(chunk, 0, length);
     }
-    return in;
+    return checksum.getValue();
+  }
+  
+  /**
+   * Gets an inflater for the file data of {@code entry}, which must only be
+   * used until {@code reference} is released.
+   */
+  private ParallelEntryInflater getParallelInflater(ArchiveMapping.Reference reference,
+      MxpEntry entry) throws IOException {
+    entry = getPresentEntry(entry);
+    ByteBuffer fileData = sliceFileData(reference, entry);
+    ParallelEntryInflater inflater =
+        new ParallelEntryInflater(fileData, buildIndex(fileData), codecPool);
+    if (metricsListener != null) {
+      inflater.setMetricsListener(metricsListener, entry.getFilePath());
+    }
+    return inflater;
+  }
+  
+  /**
+   * Builds the block index for the file data of an entry, reporting any
+   * failure to the metrics listener.
+   */
+  private MxpBlockIndex buildIndex(ByteBuffer fileData) throws MxpFormatException {
+    try {
+      return MxpBlockIndex.build(fileData);
+    } catch (MxpFormatException e) {
+      if (metricsListener != null) {
+        metricsListener.error(null, e);
+      }
+      throw e;
+    }
+  }
+  
+  /**
+   * Gets the reader's own version of {@code entry}.
+   * 
+   * @throws IllegalArgumentException if the entry is not present in the MXP
+   */
+  private MxpEntry getPresentEntry(MxpEntry entry) {
+    Preconditions.checkState(!closed, "Mxp file closed.");
+    Preconditions.checkNotNull(entry, "entry must not be null.");
+    MxpEntry ourEntry = getEntry(entry.getFilePath());
+    Preconditions.checkArgument(ourEntry != null,
+        "Entry '%s' not present in MXP.", entry.getFilePath());
+    return ourEntry;
+  }
+  
+  /**
+   * Takes a reference to the mapping, keeping the slices of it from being
+   * unmapped, should the reader be closed, until the reference is released.
+   */
+  private ArchiveMapping.Reference retainMapping() {
+    Preconditions.checkState(!closed, "Mxp file closed.");
+    return mapping.retain();
+  }
+  
+  /**
+   * Gets the file data of {@code entry}, which stays mapped until
+   * {@code reference} is released.
+   */
+  private static ByteBuffer sliceFileData(ArchiveMapping.Reference reference, MxpEntry entry)
+      throws IOException {
+    return reference.slice(entry.getFileDataOffset(), entry.getFileDataLength());
+  }
+  
+  /**
+   * Copies the file data for {@code entry} to {@code target} exactly as it is
+   * stored in the archive, i.e. still compressed and including the block sizes
+   * and end of file marker.
+   * 
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalStateException if the reader has been closed
+   */
+  void transferEntryData(MxpEntry entry, WritableByteChannel target) throws IOException {
+    Preconditions.checkState(!closed, "Mxp file closed.");
+    Preconditions.checkNotNull(entry, "entry must not be null.");
+    Preconditions.checkArgument(getEntry(entry.getFilePath()) != null,
+        "Entry '%s' not present in MXP.", entry.getFilePath());
+    
+    FileChannel channel = mxpFileData.getChannel();
+    long position = entry.getFileDataOffset();
+    long end = position + entry.getFileDataLength();
+    while (position < end) {
+      // transferTo may move fewer bytes than asked, particularly between files.
+      long transferred = channel.transferTo(position, end - position, target);
+      if (transferred == 0 && position >= channel.size()) {
+        throw new EOFException("Unexpected end of file.");
+      }
+      position += transferred;
+    }
+  }
+  
+  private synchronized int getEntriesFound() {
+    return entries.size();
   }
   
   /**
@@ -90,21 +613,39 @@ public class MxpReader implements Closeable {
   }
 
   /**
-   * Gets the {@code MxpEntry} for the file matching the given path.
+   * Gets the {@code MxpEntry} for the file matching the given path. A lazy
+   * reader scans the archive only as far as the matching entry, or to the end
+   * if there is none.
    * 
    * @return the matching entry if present, else null
+   * @throws IllegalStateException if a lazy reader fails to scan the archive,
+   *     or has been closed before finding the entry
    */
   @Nullable
-  public MxpEntry getEntry(String path) {
-    return entries.get(path);
+  public synchronized MxpEntry getEntry(String path) {
+    MxpEntry entry = entries.get(path);
+    while (entry == null && scanner != null) {
+      MxpEntry next = scanNextEntry();
+      if (next.getFilePath().equals(path)) {
+        entry = next;
+      }
+    }
+    return entry;
   }
 
   /**
    * Gets an unmodifiable view of the {@code MxpEntry}'s representing the files 
-   * stored within the MXP archive.
+   * stored within the MXP archive. A lazy reader first scans the rest of the
+   * archive.
+   * 
+   * @throws IllegalStateException if a lazy reader fails to scan the archive,
+   *     or has been closed before finding all the entries
    */
-  public Collection<MxpEntry> getEntries() {
-    return entries.values();
+  public synchronized Collection<MxpEntry> getEntries() {
+    while (scanner != null) {
+      scanNextEntry();
+    }
+    return Collections.unmodifiableCollection(entries.values());
   }
 
   /**
@@ -115,88 +656,189 @@ public class MxpReader implements Closeable {
   }
   
   /**
-   * Closes the reader. This has no effect on any input streams already obtained
-   * via {@link #getInputStream(MxpEntry)}, but prevents further streams being
-   * opened.
+   * Closes the reader. This has no effect on any input streams or channels
+   * already obtained via {@link #getInputStream(MxpEntry)} or
+   * {@link #getChannel(MxpEntry)}, but prevents further ones being opened. The
+   * mapping of the archive is released straight away if there are none, or
+   * otherwise once they have all been closed or exhausted.
    */
   @Override
-  public void close() throws IOException {
-    mxpFileReader.close();
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
     closed = true;
+    if (scanner != null) {
+      scanner.close();
+    }
+    mapping.release();
+    mxpFileData.close();
+  }
+  
+  /**
+   * As {@link #readNextEntry()}, but rethrowing errors unchecked as callers of
+   * the lazy accessors have no way to handle them.
+   */
+  private MxpEntry scanNextEntry() {
+    Preconditions.checkState(!closed, "Mxp file closed.");
+    try {
+      return readNextEntry();
+    } catch (IOException e) {
+      throw new IllegalStateException("Error scanning MXP file - " + e.getMessage(), e);
+    }
+  }
+  
+  /**
+   * Reads the entry at the scanner's position and records it.
+   */
+  private MxpEntry readNextEntry() throws IOException {
+    MxpEntry entry = readEntry(scanner);
+    addEntry(entry);
+    if (!scanner.hasBytesRemaining()) {
+      scanner.close();
+      scanner = null;
+    }
+    return entry;
+  }
+  
+  private void addEntry(MxpEntry entry) throws MxpFormatException {
+    if (entries.put(entry.getFilePath(), entry) != null) {
+      throw new MxpFormatException("Duplicate entry '" + entry.getFilePath() + "'.");
+    }
   }
   
   /**
    * Creates and returns an {@code MxpReader} using the given file as the source.
+   * Inflaters are borrowed from {@link CodecPool#getDefault()}.
    * 
    * @throws IOException in case of a read error
    * @throws MxpFormatException if errors are encountered reading the MXP
    */
   public static MxpReader withFile(File mxpFile) throws IOException, MxpFormatException {
-    Preconditions.checkNotNull(mxpFile, "Null file.");
-    
-    ImmutableMap.Builder<String, MxpEntry> entriesBuilder = ImmutableMap.builder();
-    byte[] mxpHeader = new byte[8];
-    GuardedRandomAccessFileReader mxpFileReader = new GuardedRandomAccessFileReader(mxpFile);
-    
-    mxpFileReader.read(mxpHeader);
-
-    // First entry should always be MXI file.
-    MxpEntry mxiFile;
-    if (mxpFileReader.hasBytesRemaining()) {
-      mxiFile = readEntry(mxpFileReader);
-      entriesBuilder.put(mxiFile.getFilePath(), mxiFile);
-    } else {
+    return withFile(mxpFile, CodecPool.getDefault());
+  }
+  
+  /**
+   * As {@link #withFile(File)}, but only reading as far as the MXI file up
+   * front. Later entries are found as {@link #getEntry(String)} and
+   * {@link #getEntries()} need them, so errors in those entries are not
+   * reported until then, and the reader must not have been closed.
+   * 
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpReader withFileLazily(File mxpFile) throws IOException, MxpFormatException {
+    return withFileLazily(mxpFile, CodecPool.getDefault());
+  }
+  
+  /**
+   * Creates and returns an {@code MxpReader} using the given file as the source
+   * and borrowing inflaters from {@code codecPool}. If the archive has an
+   * up to date {@link MxpIndex}, the entries are taken from that rather than by
+   * scanning the archive.
+   * 
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpReader withFile(File mxpFile, CodecPool codecPool)
+      throws IOException, MxpFormatException {
+    return new Builder(mxpFile).codecPool(codecPool).build();
+  }
+  
+  /**
+   * As {@link #withFile(File, CodecPool)}, but finding entries after the MXI
+   * file lazily as described by {@link #withFileLazily(File)}.
+   * 
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpReader withFileLazily(File mxpFile, CodecPool codecPool)
+      throws IOException, MxpFormatException {
+    return new Builder(mxpFile).codecPool(codecPool).lazy(true).build();
+  }
+  
+  private static MxpReader withIndex(MxpIndex index, RandomAccessFile mxpFileData,
+      ArchiveMapping mapping, CodecPool codecPool) throws IOException {
+    if (index.getEntries().isEmpty()) {
       throw new MxpFormatException("The MXP must contain at least an MXI file.");
     }
-    
-    // Confirm that what we just read looks like the MXI file.
-    if (!mxiFile.getFilePath().toLowerCase().endsWith(".mxi")) {
-      throw new MxpFormatException("The first entry must be the MXI file.");
-    }
-    
-    while (mxpFileReader.hasBytesRemaining()) {
-      MxpEntry entry = readEntry(mxpFileReader);
-      entriesBuilder.put(entry.getFilePath(), entry);
+    return new MxpReader(index.getHeader(), index.getEntries().get(0), index.getEntries(),
+        mxpFileData, mapping, codecPool, null);
+  }
+  
+  private static MxpReader withFileData(RandomAccessFile mxpFileData, ArchiveMapping mapping,
+      CodecPool codecPool, boolean lazy) throws IOException {
+    byte[] mxpHeader = new byte[8];
+    MxpArchiveScanner scanner = new MxpArchiveScanner(mapping);
+    try {
+      scanner.read(mxpHeader);
+
+      // First entry should always be MXI file.
+      MxpEntry mxiFile;
+      if (scanner.hasBytesRemaining()) {
+        mxiFile = readEntry(scanner);
+      } else {
+        throw new MxpFormatException("The MXP must contain at least an MXI file.");
+      }
+      
+      // Confirm that what we just read looks like the MXI file.
+      if (!mxiFile.getFilePath().toLowerCase().endsWith(".mxi")) {
+        throw new MxpFormatException("The first entry must be the MXI file.");
+      }
+      
+      MxpReader reader = new MxpReader(mxpHeader, mxiFile, Collections.singleton(mxiFile),
+          mxpFileData, mapping, codecPool, scanner.hasBytesRemaining() ? scanner : null);
+      if (reader.scanner == null) {
+        scanner.close();
+      }
+      if (!lazy) {
+        synchronized (reader) {
+          while (reader.scanner != null) {
+            reader.readNextEntry();
+          }
+        }
+      }
+      return reader;
+    } catch (IOException | RuntimeException e) {
+      scanner.close();
+      throw e;
     }
-    
-    return new MxpReader(mxpHeader, mxiFile, entriesBuilder.build(), mxpFileReader);
   }
   
-  private static MxpEntry readEntry(GuardedRandomAccessFileReader mxpFileReader)
-      throws IOException {
+  private static MxpEntry readEntry(MxpArchiveScanner scanner) throws IOException {
     // Get file path.
-    int pathLength = (int) mxpFileReader.readUnsignedInt32();
+    int pathLength = (int) scanner.readUnsignedInt32();
     if (pathLength > 256) {
       throw new MxpFormatException("Invalid file path length " + pathLength + ".");
     }
     byte[] pathData = new byte[pathLength];
-    mxpFileReader.read(pathData);
+    scanner.read(pathData);
     String path = MxpEntries.mxpPathToLocalSystemPath(new String(pathData, Charsets.UTF_8));
 
     // Get timestamp.
     LocalDateTime timeStamp = new LocalDateTime(
-        mxpFileReader.readUnsignedInt16(),  // Year.
-        mxpFileReader.readUnsignedInt16(),  // Month. 
-        mxpFileReader.readUnsignedInt16(),  // Day.
-        mxpFileReader.readUnsignedInt16(),  // Hour.
-        mxpFileReader.readUnsignedInt16(),  // Min.
-        mxpFileReader.readUnsignedInt16()); // Sec.
+        scanner.readUnsignedInt16(),  // Year.
+        scanner.readUnsignedInt16(),  // Month. 
+        scanner.readUnsignedInt16(),  // Day.
+        scanner.readUnsignedInt16(),  // Hour.
+        scanner.readUnsignedInt16(),  // Min.
+        scanner.readUnsignedInt16()); // Sec.
     
     // Read file type bytes (seems to be fairly pointless/random collection
     // of bits .. ).
     byte[] fileTypeData = new byte[8];
-    mxpFileReader.read(fileTypeData);
+    scanner.read(fileTypeData);
     
     long fileSize = 0;
     long compressedSize = 0;
-    long fileStart = mxpFileReader.getFilePointer();
+    long fileStart = scanner.getPosition();
 
     // The format uses 32-bit unsigned ints, so technically one or both of
     // the uncompressed and compressed byte counts could be more than
     // 2,147,483,647 which would result in a negative number when cast to an
     // int.
-    long uncompressedBlockSize = mxpFileReader.readUnsignedInt32();
-    long blockSize = mxpFileReader.readUnsignedInt32();
+    long uncompressedBlockSize = scanner.readUnsignedInt32();
+    long blockSize = scanner.readUnsignedInt32();
     if ((uncompressedBlockSize > Integer.MAX_VALUE) || (blockSize > Integer.MAX_VALUE)) {
       throw new MxpFormatException("Cannot handle files larger than 2GB");
     }
@@ -207,10 +849,10 @@ public class MxpReader implements Closeable {
       compressedSize += blockSize;
 
       // Skip over the compressed file bytes.
-      mxpFileReader.seek(mxpFileReader.getFilePointer() + blockSize);
+      scanner.skip(blockSize);
 
-      uncompressedBlockSize = mxpFileReader.readUnsignedInt32();
-      blockSize = mxpFileReader.readUnsignedInt32();
+      uncompressedBlockSize = scanner.readUnsignedInt32();
+      blockSize = scanner.readUnsignedInt32();
     }
 
     return new MxpEntry.Builder(path, compressedSize, fileSize)
@@ -218,80 +860,44 @@ public class MxpReader implements Closeable {
         .fileTypeData(fileTypeData)
         // Store the offset and length of the compressed file data for later.
         .fileDataOffset(fileStart)
-        .fileDataLength(mxpFileReader.getFilePointer() - fileStart)
+        .fileDataLength(scanner.getPosition() - fileStart)
         .build();
   }
   
   /**
-   * Helper class that wraps RandomAccessFile mainly in order to add checks that
-   * verify enough bytes exist to satisfy any read operations and throw an
-   * EOFException if not, but also to provide methods to read unsigned ints of
-   * varying size. 
+   * Checks a single file, recording rather than throwing any failure so that
+   * the other files are still checked.
    */
-  private static class GuardedRandomAccessFileReader {
+  private final class VerificationTask extends RecursiveAction {
     
-    private final RandomAccessFile fileData;
-
-    private GuardedRandomAccessFileReader(File file) throws IOException {
-      fileData = new RandomAccessFile(file, "r");
-    }
-    
-    /**
-     * Read an unsigned 16-bit integer from the byte stream assuming
-     * little-endian byte order.
-     */
-    private int readUnsignedInt16() throws IOException {
-      int val = read();
-      val |= (read() << 8);
-      return val;
-    }
-    
-    /**
-     * Read an unsigned 32-bit integer from the byte stream assuming
-     * little-endian byte order.
-     */
-    private long readUnsignedInt32() throws IOException {
-      long val = readUnsignedInt16();
-      val |= ((long) read() << 16);
-      val |= ((long) read() << 24);
-      return val;
-    }
+    private static final long serialVersionUID = 1L;
     
-    private int read() throws IOException {
-      ensureBytes(1);
-      return fileData.read();
-    }
+    private final MxpEntry entry;
+    private IOException failure;
     
-    private int read(byte[] b) throws IOException {
-      ensureBytes(b.length);
-      return fileData.read(b);
-    }
-
-    private boolean hasBytesRemaining() throws IOException {
-      return fileData.getFilePointer() < fileData.length();
+    private VerificationTask(MxpEntry entry) {
+      this.entry = entry;
     }
     
-    private void ensureBytes(long bytesExpected) throws IOException, EOFException {
-      if (fileData.length() - fileData.getFilePointer() < bytesExpected) {
-        throw new EOFException("Unexpected end of file.");
+    @Override
+    protected void compute() {
+      // Each entry holds its own reference, so its data can be unmapped as
+      // soon as it has been checked.
+      ArchiveMapping.Reference reference = mapping.retain();
+      try {
+        verifyEntry(reference, entry);
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        // Anything else thrown by a corrupt entry shouldn't stop the others
+        // being checked.
+        failure = new MxpFormatException("Error trying to verify file data.", e);
+      } finally {
+        reference.release();
+      }
+      if (failure != null && metricsListener != null) {
+        metricsListener.error(null, failure);
       }
     }
-    
-    private void close() throws IOException {
-      fileData.close();
-    }
-    
-    private long getFilePointer() throws IOException {
-      return fileData.getFilePointer();
-    }
-    
-    private void seek(long pos) throws IOException {
-      fileData.seek(pos);
-    }
-    
-    private FileChannel getChannel() {
-      return fileData.getChannel();
-    }
-    
   }
 }
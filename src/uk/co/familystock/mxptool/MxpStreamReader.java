@@ -0,0 +1,262 @@
+package uk.co.familystock.mxptool;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDateTime;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataInputStream;
+
+/**
+ * Class for reading Adobe Flash MXP containers from a stream, such as one
+ * being downloaded or uploaded, without needing the whole archive at hand.
+ *
+ * <p>Unlike {@link MxpReader} entries can only be read once, in the order
+ * they appear in the archive, in the manner of
+ * {@link java.util.zip.ZipInputStream}. Calling {@link #getNextEntry()} skips
+ * over whatever is left of the current entry's file data, which can be read
+ * beforehand via {@link #getInputStream()}. The sizes of the entries are not
+ * known in advance, so are reported as -1.
+ *
+ * <p>Only a fixed amount of the archive is held in memory at a time,
+ * regardless of its size.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpStreamReader implements Closeable {
+
+  private final LittleEndianDataInputStream in;
+  private final CodecPool codecPool;
+  private final byte[] mxpHeader = new byte[8];
+
+  private MxpEntry currentEntry;
+  private MxpFileDataInputStream currentData;
+  // Whether the current entry's file data has been passed over.
+  private boolean currentDataSkipped = true;
+  private boolean firstEntry = true;
+  private boolean endReached = false;
+  private boolean closed = false;
+
+  /**
+   * Private constructor as entry-point is via {@link #withInputStream(InputStream)}
+   * or {@link #withChannel(ReadableByteChannel)}.
+   */
+  private MxpStreamReader(InputStream in, CodecPool codecPool) throws IOException {
+    this.in = new LittleEndianDataInputStream(new BufferedInputStream(in));
+    this.codecPool = codecPool;
+    try {
+      this.in.readFully(mxpHeader);
+    } catch (EOFException e) {
+      throw new MxpFormatException("The MXP must contain at least an MXI file.");
+    }
+  }
+
+  /**
+   * Get the first 8 bytes of the MXP archive that form the header.
+   */
+  public byte[] getHeader() {
+    return Arrays.copyOf(mxpHeader, mxpHeader.length);
+  }
+
+  /**
+   * Get the MXP version indicating what version of the MXI specification the
+   * archive has been built to work with.
+   */
+  public int getMxpFormatVersion() {
+    return mxpHeader[0];
+  }
+
+  /**
+   * Reads the header of the next entry in the archive, skipping any file data
+   * of the current entry that has not been read. The first entry is always the
+   * MXI file.
+   *
+   * @return the next entry, or null if the end of the archive has been reached
+   * @throws IOException if an I/O error occurs
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   * @throws IllegalStateException if the reader has been closed
+   */
+  @Nullable
+  public MxpEntry getNextEntry() throws IOException {
+    Preconditions.checkState(!closed, "Mxp stream closed.");
+    skipCurrentData();
+    currentEntry = endReached ? null : readEntry();
+    currentDataSkipped = currentEntry == null;
+
+    if (firstEntry) {
+      // Confirm that what we just read looks like the MXI file.
+      if (currentEntry == null) {
+        throw new MxpFormatException("The MXP must contain at least an MXI file.");
+      } else if (!currentEntry.getFilePath().toLowerCase().endsWith(".mxi")) {
+        throw new MxpFormatException("The first entry must be the MXI file.");
+      }
+      firstEntry = false;
+    }
+    return currentEntry;
+  }
+
+  /**
+   * Gets an {@code InputStream} for reading the contents of the file denoted
+   * by the entry last returned by {@link #getNextEntry()}. The stream is only
+   * valid until the next call to {@link #getNextEntry()}, and the same stream
+   * is returned each time this is called in the meantime. Closing it does not
+   * close the reader.
+   *
+   * @throws IllegalStateException if there is no current entry, or the reader
+   *     has been closed
+   */
+  public InputStream getInputStream() {
+    Preconditions.checkState(!closed, "Mxp stream closed.");
+    Preconditions.checkState(currentEntry != null, "No current entry.");
+    if (currentData == null) {
+      currentData = new MxpFileDataInputStream(in, codecPool);
+    }
+    return currentData;
+  }
+
+  /**
+   * Closes the reader along with the underlying stream or channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (currentData != null) {
+      currentData.close();
+      currentData = null;
+    }
+    in.close();
+    closed = true;
+  }
+
+  /**
+   * Creates and returns an {@code MxpStreamReader} reading the archive from
+   * {@code in}. Inflaters are borrowed from {@link CodecPool#getDefault()}.
+   *
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpStreamReader withInputStream(InputStream in)
+      throws IOException, MxpFormatException {
+    return withInputStream(in, CodecPool.getDefault());
+  }
+
+  /**
+   * Creates and returns an {@code MxpStreamReader} reading the archive from
+   * {@code in} and borrowing inflaters from {@code codecPool}.
+   *
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpStreamReader withInputStream(InputStream in, CodecPool codecPool)
+      throws IOException, MxpFormatException {
+    Preconditions.checkNotNull(in, "Null input stream.");
+    Preconditions.checkNotNull(codecPool, "Null codec pool.");
+    return new MxpStreamReader(in, codecPool);
+  }
+
+  /**
+   * Creates and returns an {@code MxpStreamReader} reading the archive from
+   * {@code channel}. Inflaters are borrowed from {@link CodecPool#getDefault()}.
+   *
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpStreamReader withChannel(ReadableByteChannel channel)
+      throws IOException, MxpFormatException {
+    return withChannel(channel, CodecPool.getDefault());
+  }
+
+  /**
+   * Creates and returns an {@code MxpStreamReader} reading the archive from
+   * {@code channel} and borrowing inflaters from {@code codecPool}.
+   *
+   * @throws IOException in case of a read error
+   * @throws MxpFormatException if errors are encountered reading the MXP
+   */
+  public static MxpStreamReader withChannel(ReadableByteChannel channel, CodecPool codecPool)
+      throws IOException, MxpFormatException {
+    Preconditions.checkNotNull(channel, "Null channel.");
+    return withInputStream(Channels.newInputStream(channel), codecPool);
+  }
+
+  /**
+   * Moves past the remainder of the current entry's file data. As the data is
+   * read a whole block at a time, this always starts at a block boundary.
+   */
+  private void skipCurrentData() throws IOException {
+    if (currentData != null) {
+      currentDataSkipped = currentData.isEndOfData();
+      currentData.close();
+      currentData = null;
+    }
+    if (currentDataSkipped) {
+      return;
+    }
+    long uncompressedBlockSize = readUnsignedInt32();
+    long blockSize = readUnsignedInt32();
+
+    // 8 consecutive 0's indicates the EOF.
+    while ((uncompressedBlockSize + blockSize) > 0) {
+      ByteStreams.skipFully(in, blockSize);
+      uncompressedBlockSize = readUnsignedInt32();
+      blockSize = readUnsignedInt32();
+    }
+    currentDataSkipped = true;
+  }
+
+  @Nullable
+  private MxpEntry readEntry() throws IOException {
+    // The end of the archive can only come where the next entry would start.
+    int firstByte = in.read();
+    if (firstByte == -1) {
+      endReached = true;
+      return null;
+    }
+
+    // Get file path.
+    long pathLength = firstByte
+        | (in.readUnsignedByte() << 8)
+        | (in.readUnsignedByte() << 16)
+        | ((long) in.readUnsignedByte() << 24);
+    if (pathLength > 256) {
+      throw new MxpFormatException("Invalid file path length " + pathLength + ".");
+    }
+    byte[] pathData = new byte[(int) pathLength];
+    in.readFully(pathData);
+    String path = MxpEntries.mxpPathToLocalSystemPath(new String(pathData, Charsets.UTF_8));
+
+    // Get timestamp.
+    LocalDateTime timeStamp = new LocalDateTime(
+        in.readUnsignedShort(),  // Year.
+        in.readUnsignedShort(),  // Month.
+        in.readUnsignedShort(),  // Day.
+        in.readUnsignedShort(),  // Hour.
+        in.readUnsignedShort(),  // Min.
+        in.readUnsignedShort()); // Sec.
+
+    byte[] fileTypeData = new byte[8];
+    in.readFully(fileTypeData);
+
+    return new MxpEntry.Builder(path)
+        .timeStamp(timeStamp)
+        .fileTypeData(fileTypeData)
+        .build();
+  }
+
+  /*
+   * Read an unsigned 32-bit integer in little-endian format.
+   */
+  private long readUnsignedInt32() throws IOException {
+    return in.readInt() & 0xffffffffL;
+  }
+}
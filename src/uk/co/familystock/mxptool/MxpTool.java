@@ -1,8 +1,6 @@
 package uk.co.familystock.mxptool;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -13,19 +11,21 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Formatter;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
 
 /**
  * Acts as command-line launcher and also provides static entry points for 
@@ -45,25 +45,64 @@ public class MxpTool {
   private static final Flag<Boolean> FLAG_list = Flag.value(false);
   
   @FlagSpec(help = ": Extract the contents of an MXP archive." +
-      " Usage: --extract MXP_FILE [--dir=TARGET_DIR] [FILE..]")
+      " Usage: --extract MXP_FILE [--dir=TARGET_DIR] [--threads=COUNT] [FILE..]")
   private static final Flag<Boolean> FLAG_extract = Flag.value(false);
   
   @FlagSpec(help = ": Print the MXI file for a given MXP file." +
       " Usage: --dump MXP_FILE")
   private static final Flag<Boolean> FLAG_dump = Flag.value(false);
   
-  @FlagSpec(help = ": Optional flag to specify target directory when extracting an MXP archive")
+  @FlagSpec(help = ": Add, replace or remove files in an existing MXP archive." +
+      " Usage: --update MXP_FILE [--dir=SOURCE_DIR] [--remove=FILE,..] [FILE..]")
+  private static final Flag<Boolean> FLAG_update = Flag.value(false);
+  
+  @FlagSpec(help = ": Combine several MXP archives into one." +
+      " Usage: --merge MXP_FILE SOURCE_MXP_FILE [SOURCE_MXP_FILE..]")
+  private static final Flag<Boolean> FLAG_merge = Flag.value(false);
+  
+  @FlagSpec(help = ": Check that every file in an MXP archive decompresses cleanly." +
+      " Usage: --verify MXP_FILE [--threads=COUNT]")
+  private static final Flag<Boolean> FLAG_verify = Flag.value(false);
+  
+  @FlagSpec(help = ": Create many MXP files, listed as MXP_FILE=MXI_FILE lines in a manifest." +
+      " Usage: --batch MANIFEST_FILE [--threads=COUNT] [--mxpVersion=VERSION]")
+  private static final Flag<Boolean> FLAG_batch = Flag.value(false);
+  
+  @FlagSpec(help = ": Run as a daemon serving create, extract and list commands sent with"
+      + " --client. Usage: --daemon [--port=PORT] [--threads=COUNT]")
+  private static final Flag<Boolean> FLAG_daemon = Flag.value(false);
+  
+  @FlagSpec(help = ": Optional flag to send create, extract and list commands to a running daemon,"
+      + " running them in this process if there isn't one")
+  private static final Flag<Boolean> FLAG_client = Flag.value(false);
+  
+  @FlagSpec(help = ": Optional flag to specify the port a daemon listens on or is sent commands on")
+  private static final Flag<Integer> FLAG_port = Flag.positiveValue(MxpDaemon.DEFAULT_PORT);
+  
+  @FlagSpec(help = ": Optional flag to specify target directory when extracting an MXP archive,"
+      + " or the directory holding the files to add when updating one")
   private static final Flag<String> FLAG_dir = Flag.value(".");
   
+  @FlagSpec(help = ": Optional flag to specify the number of threads to extract or verify with,"
+      + " or the number of archives or requests to handle at a time in a batch or daemon")
+  private static final Flag<Integer> FLAG_threads =
+      Flag.positiveValue(Runtime.getRuntime().availableProcessors());
+  
+  @FlagSpec(help = ": Optional flag to specify files to remove when updating an MXP archive")
+  private static final Flag<List<String>> FLAG_remove = Flag.stringList();
+  
   @FlagSpec(help = ": Increase the verbosity of logging statements")
   private static final Flag<Boolean> FLAG_verbose = Flag.value(false);
   
-  @FlagSpec(help = ": Optional flag to specify MXP version when creating an MXP archive")
+  @FlagSpec(help = ": Optional flag to specify MXP version when creating MXP archives")
   private static final Flag<Integer> FLAG_mxpVersion = 
       Flag.positiveValue(MxpWriter.DEFAULT_MXP_VERSION);
       */
   
   private static final Logger logger = Logger.getLogger(MxpTool.class.getCanonicalName());
+
+  // How long a daemon being shut down waits for requests already accepted.
+  private static final int DAEMON_SHUTDOWN_SECONDS = 10;
     
   private MxpTool() {
     // Class designed to be used statically.
@@ -72,7 +111,7 @@ public class MxpTool {
   public static void main(String[] args) throws Exception {
     /*
     Flags.setUsagePrefix("Usage: " + MxpTool.class.getSimpleName() 
-        + " --[create|list|dump|extract] [--opts...] [args...]");
+        + " --[create|list|dump|extract|update|merge|verify|batch|daemon] [--opts...] [args...]");
     // Restrict which flags are recognised/printed.
     Flags.setAllowedFlags(Lists.newArrayList(MxpTool.class.getPackage().getName().concat(".")));
     args = Flags.parseAndReturnLeftovers(args);
@@ -95,29 +134,99 @@ public class MxpTool {
     if (FLAG_dump.get()) {
       cmdFlags++;
     }
+    if (FLAG_update.get()) {
+      cmdFlags++;
+    }
+    if (FLAG_merge.get()) {
+      cmdFlags++;
+    }
+    if (FLAG_verify.get()) {
+      cmdFlags++;
+    }
+    if (FLAG_batch.get()) {
+      cmdFlags++;
+    }
+    if (FLAG_daemon.get()) {
+      cmdFlags++;
+    }
     
     if (cmdFlags > 1) {
-      throw new IllegalArgumentException("Only one of --[create|list|extract|dump] may specifed.");
+      throw new IllegalArgumentException(
+          "Only one of --[create|list|extract|dump|update|merge|verify|batch|daemon]"
+          + " may specifed.");
     } else if (cmdFlags == 0) {
       throw new IllegalArgumentException("No command specified. See --help for help/usage.");
     }
     
+    if (FLAG_daemon.get()) {
+      // The server's own thread keeps the JVM running once main returns.
+      final MxpDaemon daemon =
+          MxpDaemon.start(FLAG_port.get(), FLAG_threads.get(), MxpDaemon.DEFAULT_MAX_QUEUED);
+      // Stop cleanly when interrupted or killed, so that the token file isn't
+      // left behind for whoever takes the port next.
+      Runtime.getRuntime().addShutdownHook(new Thread("mxp-daemon-shutdown") {
+        @Override
+        public void run() {
+          daemon.stop(DAEMON_SHUTDOWN_SECONDS);
+        }
+      });
+      return;
+    }
+    
+    if (FLAG_batch.get()) {
+      Preconditions.checkArgument(args.length >= 1,
+          "Manifest path must be specified as first argument");
+      if (!batch(new File(args[0]), new OutputStreamWriter(System.out), FLAG_threads.get(),
+          FLAG_mxpVersion.get())) {
+        System.exit(1);
+      }
+      return;
+    }
+    
     Preconditions.checkArgument(args.length >= 1, "MXP path must be specified as first argument");
     File mxpFile = new File(args[0]);
+    MxpClient client = FLAG_client.get() ? new MxpClient(FLAG_port.get()) : null;
     
     if (FLAG_create.get()) {
       Preconditions.checkArgument(args.length >= 2,
           "MXI path must be specified as second argument");
       File mxiFile = new File(args[1]);
-      create(mxpFile, mxiFile, FLAG_mxpVersion.get());
+      if (client != null) {
+        client.create(mxpFile, mxiFile, FLAG_mxpVersion.get());
+      } else {
+        create(mxpFile, mxiFile, FLAG_mxpVersion.get());
+      }
     } else if (FLAG_list.get()) {
       Set<String> targetPaths = getTargetPaths(args, 1);
-      list(mxpFile, new OutputStreamWriter(System.out), targetPaths);
+      if (client != null) {
+        client.list(mxpFile, new OutputStreamWriter(System.out), targetPaths);
+      } else {
+        list(mxpFile, new OutputStreamWriter(System.out), targetPaths);
+      }
     } else if (FLAG_extract.get()) {
       Set<String> targetPaths = getTargetPaths(args, 1);
-      extract(mxpFile, new File(FLAG_dir.get()), targetPaths);
+      if (client != null) {
+        client.extract(mxpFile, new File(FLAG_dir.get()), targetPaths, FLAG_threads.get());
+      } else {
+        extract(mxpFile, new File(FLAG_dir.get()), targetPaths, FLAG_threads.get());
+      }
     } else if (FLAG_dump.get()) {
       dump(mxpFile, new OutputStreamWriter(System.out));
+    } else if (FLAG_update.get()) {
+      Set<String> targetPaths = getTargetPaths(args, 1);
+      update(mxpFile, new File(FLAG_dir.get()), targetPaths, Sets.newHashSet(FLAG_remove.get()));
+    } else if (FLAG_merge.get()) {
+      Preconditions.checkArgument(args.length >= 2,
+          "At least one source MXP path must be specified after the target MXP path");
+      List<File> sourceFiles = Lists.newArrayList();
+      for (int i = 1; i < args.length; i++) {
+        sourceFiles.add(new File(args[i]));
+      }
+      merge(mxpFile, sourceFiles);
+    } else if (FLAG_verify.get()) {
+      if (!verify(mxpFile, new OutputStreamWriter(System.out), FLAG_threads.get())) {
+        System.exit(1);
+      }
     }
     */
   }
@@ -177,6 +286,117 @@ public class MxpTool {
     writer.write(mxpFile);
   }
 
+  /**
+   * Creates the MXP archives listed in a manifest, several at a time, and
+   * prints how long each took and how large it is, or why it failed. Each line
+   * of the manifest is of the form {@code MXP_FILE=MXI_FILE}, with relative
+   * paths taken as relative to the manifest. A failure to create one archive
+   * does not stop the others being created.
+   * 
+   * @param manifest the path of the manifest listing the archives to create
+   * @param out output to write the results to
+   * @param threads the number of archives to create at a time
+   * @param mxpVersion the MXP/MXI version to set for the archives
+   * @return whether every archive was created
+   * @throws IOException if there is an error reading the manifest or writing
+   *     the results
+   */
+  public static boolean batch(File manifest, Writer out, int threads, int mxpVersion)
+      throws IOException {
+    Preconditions.checkNotNull(manifest, "manifest must be non-null.");
+    Preconditions.checkNotNull(out, "out must be non-null.");
+    Preconditions.checkArgument(threads > 0, "threads must be positive, but was %s", threads);
+    
+    Preconditions.checkArgument(manifest.canRead(), "Can't read manifest '%s'", manifest.getPath());
+    
+    MxpBatchWriter batchWriter = new MxpBatchWriter();
+    batchWriter.addManifest(manifest);
+    batchWriter.setConcurrency(threads);
+    batchWriter.setMxpVersion(mxpVersion);
+    MxpBatchResult result = batchWriter.write();
+    
+    @SuppressWarnings("resource")
+    Formatter stringFormatter = new Formatter(out);
+    for (MxpBatchResult.ArchiveResult archive : result.getArchives()) {
+      if (archive.isSuccessful()) {
+        stringFormatter.format("OK      %s  %d bytes in %d ms\n", archive.getMxpFile().getPath(),
+            archive.getArchiveBytes(), TimeUnit.NANOSECONDS.toMillis(archive.getElapsedNanos()));
+      } else {
+        stringFormatter.format("FAILED  %s - %s\n", archive.getMxpFile().getPath(),
+            archive.getFailure().getMessage());
+      }
+    }
+    stringFormatter.format("%d of %d archives created, %d bytes in %d ms\n",
+        result.getArchives().size() - result.getFailures().size(), result.getArchives().size(),
+        result.getArchiveBytes(), TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos()));
+    out.flush();
+    return result.isSuccessful();
+  }
+
+  /**
+   * Updates an existing MXP archive in place. Files at {@code updatePaths},
+   * relative to {@code sourceDir}, are added to the archive or replace the
+   * existing entries, while the entries at {@code removePaths} are removed. The
+   * data for all other entries is copied across without being recompressed.
+   * 
+   * @param mxpFile the path of the MXP archive to update
+   * @param sourceDir the directory holding the files to add
+   * @param updatePaths paths of the files to add or replace, may be null
+   * @param removePaths paths of the entries to remove, may be null
+   * @throws IOException if there is an error reading or writing the files
+   */
+  public static void update(File mxpFile, File sourceDir, Set<String> updatePaths,
+      Set<String> removePaths) throws IOException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(sourceDir, "sourceDir must be non-null.");
+    
+    Preconditions.checkArgument(mxpFile.canRead(), "Can't read MXP file '%s'", mxpFile.getPath());
+    
+    MxpUpdater updater = new MxpUpdater(mxpFile);
+    if (updatePaths != null) {
+      for (String path : updatePaths) {
+        updater.put(path, new File(sourceDir, path));
+      }
+    }
+    if (removePaths != null) {
+      for (String path : removePaths) {
+        updater.remove(path);
+      }
+    }
+    updater.update();
+  }
+
+  /**
+   * Combines several MXP archives into one. The MXI of the first archive is
+   * used for the new archive, with the files listed in the MXIs of the other
+   * archives added to it. The compressed data of the files is copied across
+   * without being decompressed.
+   * 
+   * @param mxpFile the path of the MXP archive to create
+   * @param sourceFiles the paths of the MXP archives to combine
+   * @throws IOException if there is an error reading or writing the files
+   * @throws IllegalStateException if the archives contain files with the same
+   * path
+   */
+  public static void merge(File mxpFile, List<File> sourceFiles) throws IOException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(sourceFiles, "sourceFiles must be non-null.");
+    
+    List<MxpReader> readers = Lists.newArrayListWithCapacity(sourceFiles.size());
+    try {
+      for (File sourceFile : sourceFiles) {
+        Preconditions.checkArgument(
+            sourceFile.canRead(), "Can't read MXP file '%s'", sourceFile.getPath());
+        readers.add(MxpReader.withFile(sourceFile));
+      }
+      new MxpMerger(readers).write(mxpFile);
+    } finally {
+      for (MxpReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
   /**
    * Prints a nicely formatted list of the files contained within a given MXP
    * archive.
@@ -211,9 +431,12 @@ public class MxpTool {
     long totalBytes = 0;
     int fileCount = 0;
     
-    MxpReader reader = MxpReader.withFile(mxpFile);
-    List<MxpEntry> entries = getTargetEntries(reader, targetPaths);
-    reader.close();
+    int mxpFormatVersion;
+    List<MxpEntry> entries;
+    try (MxpReader reader = MxpReader.withFileLazily(mxpFile)) {
+      mxpFormatVersion = reader.getMxpFormatVersion();
+      entries = getTargetEntries(reader, targetPaths);
+    }
     
     Collections.sort(entries, new Comparator<MxpEntry>() {
       @Override
@@ -223,7 +446,7 @@ public class MxpTool {
     });
 
     stringFormatter.format(
-        "MXP Archive v%d: %s\n\n", reader.getMxpFormatVersion(), mxpFile.getName());
+        "MXP Archive v%d: %s\n\n", mxpFormatVersion, mxpFile.getName());
     out.write("      Length  Date        Time   Ratio  Path\n");
     out.write("    --------  ----------  -----  -----  ------\n");
     for (MxpEntry entry : entries) {
@@ -268,6 +491,24 @@ public class MxpTool {
    */
   public static void extract(File mxpFile, File targetDir, Set<String> targetPaths)
       throws IOException {
+    extract(mxpFile, targetDir, targetPaths, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Extracts the contents of an MXP archive to the specified location, using
+   * up to {@code threads} threads to extract several files at a time.
+   * If {@code targetPaths} is not null then it is used to filter the list of
+   * files to extract, else all files are extracted.
+   * 
+   * @param mxpFile the path of the MXP archive to extract
+   * @param targetDir the path to extract to
+   * @param targetPaths a set of file paths to extract
+   * @param threads the number of files to extract at a time
+   * @throws IOException if there is an error reading or writing the files,
+   *     with any further errors attached as suppressed exceptions
+   */
+  public static void extract(File mxpFile, File targetDir, Set<String> targetPaths, int threads)
+      throws IOException {
     Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
     Preconditions.checkNotNull(targetDir, "targetDir must be non-null.");
     
@@ -280,19 +521,31 @@ public class MxpTool {
           + targetDir.getAbsolutePath() + "'.");
     }
 
-    try (MxpReader reader = MxpReader.withFile(mxpFile)) {
-      for (MxpEntry entry : getTargetEntries(reader, targetPaths)) {
-        File target = new File(targetDir, entry.getFilePath());
-        target.getParentFile().mkdirs();
-        target.setLastModified(entry.getTimestamp().toDateTime().getMillis());
-        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
-          ByteStreams.copy(reader.getInputStream(entry), out);
-        }
+    try (MxpReader reader = MxpReader.withFileLazily(mxpFile)) {
+      MxpExtractor extractor = new MxpExtractor(reader);
+      extractor.setExtractionThreads(threads);
+      extractor.extract(getTargetEntries(reader, targetPaths), targetDir);
+    }
+  }
+  
+  /**
+   * Gets the entries of a lazy reader with the given paths, or all its entries
+   * if {@code targetPaths} is null, rethrowing any error scanning the archive
+   * as the {@code IOException} it was.
+   */
+  private static List<MxpEntry> getTargetEntries(MxpReader reader, Set<String> targetPaths)
+      throws IOException {
+    try {
+      return findTargetEntries(reader, targetPaths);
+    } catch (IllegalStateException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
       }
+      throw e;
     }
   }
   
-  private static List<MxpEntry> getTargetEntries(MxpReader reader, Set<String> targetPaths) {
+  private static List<MxpEntry> findTargetEntries(MxpReader reader, Set<String> targetPaths) {
     List<MxpEntry> entries;
     if (targetPaths == null) {
       entries = Lists.newArrayList(reader.getEntries());
@@ -310,6 +563,47 @@ public class MxpTool {
     return entries;
   }
 
+  /**
+   * Checks that every file in an MXP archive decompresses cleanly, without
+   * writing any of them out, and prints any failures along with how quickly
+   * the archive was checked.
+   * 
+   * @param mxpFile the path of the MXP archive to check
+   * @param out output to write the results to
+   * @param threads the number of threads to check the archive with
+   * @return whether every file decompressed cleanly
+   * @throws IOException if there is an error reading the archive, or it is too
+   *     malformed for its files to be found
+   */
+  public static boolean verify(File mxpFile, Writer out, int threads) throws IOException {
+    Preconditions.checkNotNull(mxpFile, "mxpFile must be non-null.");
+    Preconditions.checkNotNull(out, "out must be non-null.");
+    Preconditions.checkArgument(threads > 0, "threads must be positive, but was %s", threads);
+    
+    Preconditions.checkArgument(mxpFile.canRead(), "Can't read MXP file '%s'", mxpFile.getPath());
+    
+    @SuppressWarnings("resource")
+    Formatter stringFormatter = new Formatter(out);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    MxpVerificationResult result;
+    try (MxpReader reader = MxpReader.withFileLazily(mxpFile)) {
+      result = reader.verify(pool);
+    } finally {
+      pool.shutdownNow();
+    }
+    
+    for (Map.Entry<MxpEntry, IOException> failure : result.getFailures().entrySet()) {
+      stringFormatter.format("FAILED  %s - %s\n",
+          failure.getKey().getFilePath(), failure.getValue().getMessage());
+    }
+    stringFormatter.format("%s: %d of %d files OK, %d bytes in %d ms (%.1f MB/s)\n",
+        mxpFile.getName(), result.getEntryCount() - result.getFailures().size(),
+        result.getEntryCount(), result.getDecompressedBytes(),
+        TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos()), result.getThroughput());
+    out.flush();
+    return result.isValid();
+  }
+
   /**
    * Locates and prints the contents of the MXI file for an MXP archive.
    * 
@@ -323,14 +617,17 @@ public class MxpTool {
     
     Preconditions.checkArgument(mxpFile.canRead(), "Can't read MXP file '%s'", mxpFile.getPath());
 
-    MxpReader reader = MxpReader.withFile(mxpFile);
+    // Only the MXI file is needed, so there's no need to scan the whole archive.
+    MxpReader reader = MxpReader.withFileLazily(mxpFile);
     MxpEntry mxiEntry = reader.getMxiFile();
     
+    // The MXI is streamed straight from the archive to the output, so
+    // however many files it lists it is never held in memory as a whole.
     try (InputStream in = reader.getInputStream(mxiEntry)) {
       reader.close();
-      Document mxiDoc = XmlUtil.getDocumentBuilder().parse(in);
-      XmlUtil.printDom(mxiDoc, out);
-    } catch (SAXException e) {
+      XmlUtil.printXml(in, out);
+      out.flush();
+    } catch (XMLStreamException e) {
       throw new IOException("Parsing/printing of MXI file failed - '" + e.getMessage() + "'", e);
     }
   }
@@ -0,0 +1,218 @@
+package uk.co.familystock.mxptool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import org.joda.time.LocalDateTime;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Class for adding, replacing and removing the files held in an existing MXP
+ * archive.
+ * 
+ * <p>Only the new files are compressed, the compressed data for every other
+ * entry is copied across unchanged. Entries keep their position within the
+ * archive, with added entries placed at the end. Note that the MXI file is not
+ * updated to match, so it should be replaced too if the list of files has
+ * changed.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public class MxpUpdater {
+  
+  private static final Logger logger = Logger.getLogger(MxpUpdater.class.getName());
+  
+  private final File mxpFile;
+  // Keyed by local system path, as used by MxpReader.
+  private final Map<String, File> puts = Maps.newLinkedHashMap();
+  private final Set<String> removals = Sets.newHashSet();
+  private int compressionThreads = Runtime.getRuntime().availableProcessors();
+  private CodecPool codecPool = CodecPool.getDefault();
+  private CompressionStrategy compressionStrategy =
+      CompressionStrategies.fixed(Deflater.BEST_COMPRESSION);
+  
+  /**
+   * Creates a {@code MxpUpdater} for the given MXP archive.
+   *
+   * @param mxpFile the MXP archive to update
+   */
+  public MxpUpdater(File mxpFile) {
+    Preconditions.checkNotNull(mxpFile, "MXP file must be not be null.");
+    Preconditions.checkArgument(mxpFile.canRead(),
+        "Unable to read MXP file '%s'.", mxpFile.getAbsolutePath());
+    this.mxpFile = mxpFile;
+  }
+  
+  /**
+   * Adds a file to the archive, replacing the existing entry if there is one.
+   *
+   * @param path the path of the entry within the archive
+   * @param file the file holding the new content for the entry
+   */
+  public void put(String path, File file) {
+    Preconditions.checkNotNull(file, "File must not be null.");
+    String localPath = normalizePath(path);
+    puts.put(localPath, file);
+    removals.remove(localPath);
+  }
+  
+  /**
+   * Removes an entry from the archive. Paths not present in the archive are
+   * ignored.
+   *
+   * @param path the path of the entry within the archive
+   */
+  public void remove(String path) {
+    String localPath = normalizePath(path);
+    removals.add(localPath);
+    puts.remove(localPath);
+  }
+  
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+  
+  /**
+   * Sets the number of threads used to compress new file data, by default one
+   * per available processor.
+   *
+   * @see MxpWriter#setCompressionThreads(int)
+   */
+  public void setCompressionThreads(int compressionThreads) {
+    Preconditions.checkArgument(compressionThreads > 0,
+        "Compression thread count must be positive, but was %s", compressionThreads);
+    this.compressionThreads = compressionThreads;
+  }
+  
+  public CodecPool getCodecPool() {
+    return codecPool;
+  }
+  
+  /**
+   * Sets the pool codecs are borrowed from, by default
+   * {@link CodecPool#getDefault()}.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = Preconditions.checkNotNull(codecPool, "Codec pool must not be null.");
+  }
+  
+  public CompressionStrategy getCompressionStrategy() {
+    return compressionStrategy;
+  }
+  
+  /**
+   * Sets the strategy used to choose how hard to compress new file data.
+   *
+   * @see MxpWriter#setCompressionStrategy(CompressionStrategy)
+   */
+  public void setCompressionStrategy(CompressionStrategy compressionStrategy) {
+    this.compressionStrategy = Preconditions.checkNotNull(
+        compressionStrategy, "Compression strategy must not be null.");
+  }
+  
+  /**
+   * Applies the changes, replacing the original archive.
+   *
+   * @throws IOException if read/write errors occur
+   */
+  public void update() throws IOException {
+    update(mxpFile);
+  }
+  
+  /**
+   * Writes a copy of the archive with the changes applied to {@code target},
+   * which may be the original archive. The archive is written to a temporary
+   * file first, so {@code target} is left untouched should anything fail.
+   *
+   * @param target the path to write the updated archive to
+   * @throws IOException if read/write errors occur
+   */
+  public void update(File target) throws IOException {
+    Preconditions.checkNotNull(target, "Target file must not be null.");
+    
+    File targetDir = target.getAbsoluteFile().getParentFile();
+    File tempFile = File.createTempFile(target.getName(), ".tmp", targetDir);
+    try {
+      try (MxpReader reader = MxpReader.withFile(mxpFile, codecPool)) {
+        write(reader, tempFile);
+      }
+      Files.move(tempFile.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      // Keep any index up to date, rather than leave it to be ignored.
+      if (MxpIndex.getIndexFile(target).exists()) {
+        MxpIndex.write(target);
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
+  
+  private void write(MxpReader reader, File target) throws IOException {
+    String mxiPath = reader.getMxiFile().getFilePath();
+    Preconditions.checkArgument(!removals.contains(mxiPath), "The MXI file can't be removed.");
+    
+    Set<String> unusedPuts = Sets.newLinkedHashSet(puts.keySet());
+    try (FileOutputStream fout = new FileOutputStream(target);
+        BufferedOutputStream mxpArchive = new BufferedOutputStream(fout);
+        BlockCompressionPipeline pipeline = new BlockCompressionPipeline(
+            mxpArchive, compressionThreads, codecPool, compressionStrategy)) {
+      mxpArchive.write(reader.getHeader());
+      
+      for (MxpEntry entry : reader.getEntries()) {
+        String path = entry.getFilePath();
+        if (removals.contains(path)) {
+          logger.fine("Removing '" + path + "'.");
+        } else if (puts.containsKey(path)) {
+          logger.fine("Replacing '" + path + "'.");
+          writeFile(pipeline, path, puts.get(path));
+          unusedPuts.remove(path);
+        } else {
+          pipeline.writeRaw(MxpWriter.encodeEntryHeader(
+              path, entry.getTimestamp(), entry.getFileType()));
+          // Copy the compressed data straight across.
+          pipeline.flush();
+          reader.transferEntryData(entry, fout.getChannel());
+        }
+      }
+      
+      for (String path : unusedPuts) {
+        logger.fine("Adding '" + path + "'.");
+        writeFile(pipeline, path, puts.get(path));
+      }
+      pipeline.finish();
+    }
+  }
+  
+  private void writeFile(BlockCompressionPipeline pipeline, String path, File file)
+      throws IOException {
+    if (!file.canRead()) {
+      throw new FileNotFoundException(
+          String.format("The file '%s' could not be found.", file.getAbsolutePath()));
+    }
+    
+    pipeline.writeRaw(MxpWriter.encodeEntryHeader(
+        path, new LocalDateTime(file.lastModified()), MxpWriter.FILE_TERMINATOR));
+    try (FileInputStream fin = new FileInputStream(file)) {
+      pipeline.writeFileData(path, fin);
+    }
+    pipeline.writeRaw(MxpWriter.FILE_TERMINATOR);
+  }
+  
+  private static String normalizePath(String path) {
+    Preconditions.checkArgument(path != null && !path.isEmpty(), "Path must be non-empty.");
+    return MxpEntries.mxpPathToLocalSystemPath(MxpEntries.localSystemPathToMxpPath(path));
+  }
+}
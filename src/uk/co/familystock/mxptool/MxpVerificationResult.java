@@ -0,0 +1,88 @@
+package uk.co.familystock.mxptool;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The outcome of checking that every file in an MXP archive decompresses
+ * cleanly, as returned by {@link MxpReader#verify}.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+public final class MxpVerificationResult {
+
+  private final int entryCount;
+  private final long compressedBytes;
+  private final long decompressedBytes;
+  private final long elapsedNanos;
+  private final Map<MxpEntry, IOException> failures;
+
+  MxpVerificationResult(int entryCount, long compressedBytes, long decompressedBytes,
+      long elapsedNanos, Map<MxpEntry, IOException> failures) {
+    this.entryCount = entryCount;
+    this.compressedBytes = compressedBytes;
+    this.decompressedBytes = decompressedBytes;
+    this.elapsedNanos = elapsedNanos;
+    this.failures = Collections.unmodifiableMap(Maps.newLinkedHashMap(failures));
+  }
+
+  /**
+   * Whether every file in the archive decompressed cleanly.
+   */
+  public boolean isValid() {
+    return failures.isEmpty();
+  }
+
+  /**
+   * Gets the number of files checked.
+   */
+  public int getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Gets the total compressed size of the files checked.
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * Gets the total decompressed size of the files checked.
+   */
+  public long getDecompressedBytes() {
+    return decompressedBytes;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Gets the rate at which the archive was checked, in megabytes of
+   * decompressed data per second.
+   */
+  public double getThroughput() {
+    if (elapsedNanos == 0) {
+      return 0;
+    }
+    return (decompressedBytes / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+  }
+
+  /**
+   * Gets the files that failed to decompress cleanly, in the order they appear
+   * in the archive, along with the reason each failed.
+   */
+  public Map<MxpEntry, IOException> getFailures() {
+    return failures;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d files, %d bytes, %d failures, %.1f MB/s",
+        entryCount, decompressedBytes, failures.size(), getThroughput());
+  }
+}
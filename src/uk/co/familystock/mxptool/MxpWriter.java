@@ -7,11 +7,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.LocalDateTime;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -21,6 +24,10 @@ import org.xml.sax.helpers.DefaultHandler;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 /**
  * Class for creating Adobe MXP containers from MXI files.
@@ -37,23 +44,26 @@ public class MxpWriter {
   private static final int MAX_VALUE_UINT_16 = 65535;
   private static final long MAX_VALUE_UINT_32 = 4294967295L;
   
-  // Amount of extra space allotted compression buffer to allow for increase in
-  // data size.
-  private static final int COMPRESSION_TOLERANCE_BYTES = 250;
-  
   private static final String MXI_SCHEMA = "data/mxiSchema.xsd";
   
   private static final Logger logger = Logger.getLogger(MxpWriter.class.getName());
   
   // 8 consecutive null bytes are used to indicate the end of file.
-  private static final byte[] FILE_TERMINATOR = new byte[] {0, 0, 0, 0, 0, 0, 0, 0};
+  static final byte[] FILE_TERMINATOR = new byte[] {0, 0, 0, 0, 0, 0, 0, 0};
   
   // The first 7 bytes after the MXP version (the very first byte) are always the same.
-  private static final byte[] MXP_HEADER = new byte[] {0, 0, 0, 1, 0, 0, 0};
+  static final byte[] MXP_HEADER = new byte[] {0, 0, 0, 1, 0, 0, 0};
   
   private final int mxpVersion;
   private final File mxiFile;
   private List<String> mxiFilePaths = null;
+  private int compressionThreads = Runtime.getRuntime().availableProcessors();
+  private CodecPool codecPool = CodecPool.getDefault();
+  private CompressionStrategy compressionStrategy =
+      CompressionStrategies.fixed(Deflater.BEST_COMPRESSION);
+  private CompressedDataCache cache = null;
+  private boolean writeIndex = false;
+  private MxpMetricsListener metricsListener = null;
   
   /**
    * Creates a {@code MxpWriter} using the given MXI file as its source and
@@ -87,10 +97,99 @@ public class MxpWriter {
     return mxpVersion;
   }
   
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+  
+  /**
+   * Sets the number of threads used to compress file data, by default one per
+   * available processor. A value of 1 compresses all data on the thread calling
+   * {@link #write(File)}. The archive produced is the same regardless of the
+   * number of threads used.
+   *
+   * @param compressionThreads the number of compression threads, must be positive
+   */
+  public void setCompressionThreads(int compressionThreads) {
+    Preconditions.checkArgument(compressionThreads > 0,
+        "Compression thread count must be positive, but was %s", compressionThreads);
+    this.compressionThreads = compressionThreads;
+  }
+  
+  public CodecPool getCodecPool() {
+    return codecPool;
+  }
+  
+  /**
+   * Sets the pool deflaters are borrowed from, by default
+   * {@link CodecPool#getDefault()}.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = Preconditions.checkNotNull(codecPool, "Codec pool must not be null.");
+  }
+  
+  public CompressionStrategy getCompressionStrategy() {
+    return compressionStrategy;
+  }
+  
+  /**
+   * Sets the strategy used to choose how hard to compress each entry, by
+   * default everything is compressed using {@link Deflater#BEST_COMPRESSION}.
+   * {@link CompressionStrategies#adaptive()} is considerably faster for
+   * extensions containing images, compressed SWFs or other archives.
+   */
+  public void setCompressionStrategy(CompressionStrategy compressionStrategy) {
+    this.compressionStrategy = Preconditions.checkNotNull(
+        compressionStrategy, "Compression strategy must not be null.");
+  }
+  
+  @Nullable
+  public CompressedDataCache getCache() {
+    return cache;
+  }
+  
+  /**
+   * Sets a cache to take the compressed file data from for files that have
+   * been written before, and to store the compressed data in for those that
+   * have not. By default no cache is used.
+   *
+   * @param cache the cache to use, or null for none
+   */
+  public void setCache(@Nullable CompressedDataCache cache) {
+    this.cache = cache;
+  }
+  
+  public boolean getWriteIndex() {
+    return writeIndex;
+  }
+  
+  /**
+   * Sets whether an {@link MxpIndex} is written alongside the MXP file, so
+   * that it can be opened without being scanned. Off by default.
+   */
+  public void setWriteIndex(boolean writeIndex) {
+    this.writeIndex = writeIndex;
+  }
+  
+  @Nullable
+  public MxpMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+  
+  /**
+   * Sets a listener to report the time taken to write archives, and the sizes
+   * and compression times of their entries, to. By default nothing is
+   * measured.
+   *
+   * @param metricsListener the listener to report to, or null for none
+   */
+  public void setMetricsListener(@Nullable MxpMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+  
   /**
    * Write an unsigned 8-bit integer.
    */
-  private void writeUnsignedInt8(OutputStream out, int val) throws IOException {
+  static void writeUnsignedInt8(OutputStream out, int val) throws IOException {
     Preconditions.checkArgument(val <= MAX_VALUE_UINT_8,
         "Value for unsigned 8-bit integer too large, must not exceed 2^8-1 but got %s", val);
     out.write(val);
@@ -99,7 +198,7 @@ public class MxpWriter {
   /**
    * Write an unsigned 16-bit integer in little-endian order.
    */
-  private void writeUnsignedInt16(OutputStream out, int val) throws IOException {
+  static void writeUnsignedInt16(OutputStream out, int val) throws IOException {
     Preconditions.checkArgument(val <= MAX_VALUE_UINT_16,
         "Value for unsigned 16-bit integer too large, must not exceed 2^16-1 but got %s", val);
     out.write((byte) val);
@@ -109,7 +208,7 @@ public class MxpWriter {
   /**
    * Write an unsigned 32-bit integer in little-endian order.
    */
-  private void writeUnsignedInt32(OutputStream out, long val) throws IOException {
+  static void writeUnsignedInt32(OutputStream out, long val) throws IOException {
     Preconditions.checkArgument(val <= MAX_VALUE_UINT_32,
         "Value for unsigned 32-bit integer too large, must not exceed 2^32-1 but got %s", val);
     out.write((byte) val);
@@ -130,25 +229,73 @@ public class MxpWriter {
   public void write(File mxpFile) throws IOException, MxiFormatException {
     Preconditions.checkNotNull(mxpFile, "Mxp file must not be null.");
     
+    if (metricsListener == null) {
+      writeArchive(mxpFile);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      writeArchive(mxpFile);
+    } catch (IOException | MxiFormatException | RuntimeException e) {
+      metricsListener.error(mxpFile, e);
+      throw e;
+    }
+    metricsListener.archiveWritten(
+        mxpFile, mxiFilePaths.size() + 1, mxpFile.length(), System.nanoTime() - start);
+  }
+  
+  /**
+   * Gets the total size of the MXI file and the files it lists, parsing the
+   * MXI if it hasn't been already. Files that can't be read count as empty,
+   * and are reported when the archive is written.
+   */
+  long getSourceSize() throws IOException, MxiFormatException {
+    File workingDir = mxiFile.getParentFile();
+    long size = mxiFile.length();
+    for (String path : getMxiFilePaths()) {
+      size += new File(workingDir, path).length();
+    }
+    return size;
+  }
+  
+  private List<String> getMxiFilePaths() throws IOException, MxiFormatException {
     if (mxiFilePaths == null) {
+      long start = metricsListener == null ? 0 : System.nanoTime();
       mxiFilePaths = parseMxi();
+      if (metricsListener != null) {
+        metricsListener.mxiParsed(mxiFile, mxiFilePaths.size(), System.nanoTime() - start);
+      }
     }
-    if (mxiFilePaths.size() == 0) {
+    return mxiFilePaths;
+  }
+  
+  private void writeArchive(File mxpFile) throws IOException, MxiFormatException {
+    List<String> filePaths = getMxiFilePaths();
+    if (filePaths.size() == 0) {
       logger.warning("No file entries found, only file present will be MXI file");
     }
     
     File workingDir = mxiFile.getParentFile();
     
-    
+    // Any existing index would describe the old archive.
+    MxpIndex.delete(mxpFile);
     try (BufferedOutputStream mxpArchive =
-        new BufferedOutputStream(new FileOutputStream(mxpFile))) {
+            new BufferedOutputStream(new FileOutputStream(mxpFile));
+        BlockCompressionPipeline pipeline =
+            new BlockCompressionPipeline(mxpArchive, compressionThreads, codecPool,
+                compressionStrategy, metricsListener)) {
       writeUnsignedInt8(mxpArchive, getMxpVersion());
       mxpArchive.write(MXP_HEADER);
       
-      writeFileToMxpArchive(mxpArchive, mxiFile.getName(), workingDir);
-      for (String path : mxiFilePaths) {
-        writeFileToMxpArchive(mxpArchive, path, workingDir);
+      writeFileToMxpArchive(pipeline, mxiFile.getName(), workingDir);
+      for (String path : filePaths) {
+        writeFileToMxpArchive(pipeline, path, workingDir);
       }
+      pipeline.finish();
+    }
+    
+    if (writeIndex) {
+      MxpIndex.write(mxpFile);
     }
   }
   
@@ -161,7 +308,25 @@ public class MxpWriter {
       throw new MxiFormatException("Invalid MXI file. Make sure it contains valid XML "
           + "and includes an XML declaration with the correct file encoding.", e);
     }
-      
+    return checkMxi(handler);
+  }
+  
+  /**
+   * Parses and validates an MXI read from {@code mxi}, returning the paths of
+   * the files it lists.
+   */
+  static List<String> parseMxi(InputStream mxi) throws IOException, MxiFormatException {
+    MxiHandler handler = new MxiHandler();
+    try {
+      XmlUtil.parseAndValidateDocument(mxi, MXI_SCHEMA, handler);
+    } catch (SAXException e) {
+      throw new MxiFormatException("Invalid MXI file. Make sure it contains valid XML "
+          + "and includes an XML declaration with the correct file encoding.", e);
+    }
+    return checkMxi(handler);
+  }
+  
+  private static List<String> checkMxi(MxiHandler handler) throws MxiFormatException {
     List<String> parsedFilePaths = handler.getInstallFiles();
     if (handler.getWarnings().size() > 0) {
       for (String warning : handler.getWarnings()) {
@@ -185,8 +350,8 @@ public class MxpWriter {
     return parsedFilePaths;
   }
   
-  private void writeFileToMxpArchive(OutputStream mxpFile, String path, File workingDir)
-      throws IOException {
+  private void writeFileToMxpArchive(
+      BlockCompressionPipeline pipeline, String path, File workingDir) throws IOException {
     File file = new File(workingDir, path);
     
     if (!file.canRead()) {
@@ -195,68 +360,81 @@ public class MxpWriter {
               + "Paths should be relative to the MXI file.", file.getAbsolutePath()));
     }
     
+    // File type data. This field appears to be inconsistent in terms of what
+    // is actually stored here, and overall appears to be unimportant.
+    // We re-purpose FILE_TERMINATOR here to simply fill the field with 0's.
+    pipeline.writeRaw(
+        encodeEntryHeader(path, new LocalDateTime(file.lastModified()), FILE_TERMINATOR));
+    
+    // Takes blocks of bytes from the input file and compresses them, writing
+    // the compressed and decompressed sizes to the MXP followed by the
+    // compressed bytes themselves.
+    if (cache == null) {
+      try (FileInputStream fin = new FileInputStream(file)) {
+        pipeline.writeFileData(path, fin);
+      }
+    } else {
+      writeFileDataViaCache(pipeline, path, file);
+    }
+    pipeline.writeRaw(FILE_TERMINATOR);
+  }
+  
+  /**
+   * Encodes the header preceding the file data of an entry, i.e. its path,
+   * timestamp and file type data.
+   */
+  static byte[] encodeEntryHeader(String path, LocalDateTime timeStamp, byte[] fileTypeData)
+      throws IOException {
+    ByteArrayOutputStream entryHeader = new ByteArrayOutputStream();
+    
     // Write path length and path string.
     byte[] pathBytes = MxpEntries.localSystemPathToMxpPath(path).getBytes();
-    writeUnsignedInt32(mxpFile, pathBytes.length);
-    mxpFile.write(pathBytes);
+    writeUnsignedInt32(entryHeader, pathBytes.length);
+    entryHeader.write(pathBytes);
     
     // Write timestamp.
-    LocalDateTime timeStamp = new LocalDateTime(file.lastModified());
-    writeUnsignedInt16(mxpFile, timeStamp.getYear());
-    writeUnsignedInt16(mxpFile, timeStamp.getMonthOfYear());
-    writeUnsignedInt16(mxpFile, timeStamp.getDayOfMonth());
-    writeUnsignedInt16(mxpFile, timeStamp.getHourOfDay());
-    writeUnsignedInt16(mxpFile, timeStamp.getMinuteOfHour());
-    writeUnsignedInt16(mxpFile, timeStamp.getSecondOfMinute());
+    writeUnsignedInt16(entryHeader, timeStamp.getYear());
+    writeUnsignedInt16(entryHeader, timeStamp.getMonthOfYear());
+    writeUnsignedInt16(entryHeader, timeStamp.getDayOfMonth());
+    writeUnsignedInt16(entryHeader, timeStamp.getHourOfDay());
+    writeUnsignedInt16(entryHeader, timeStamp.getMinuteOfHour());
+    writeUnsignedInt16(entryHeader, timeStamp.getSecondOfMinute());
     
-    // File type data. This field appears to be inconsistent in terms of what
-    // is actually stored here, and overall appears to be unimportant.
-    // We re-purpose FILE_TERMINATOR here to simply fill the field with 0's.
-    mxpFile.write(FILE_TERMINATOR);
-    
-    byte[] readBuffer = new byte[1024];
-    byte[] compressionBuffer = new byte[readBuffer.length];
-
-    // Create a buffer to write the compressed data to. We make large enough to
-    // hold the original data and a tiny bit more as the compression algorithm
-    // can in some cases result in output larger than the input.
-    // ByteArrayOutputStream will handle any necessary array expansion, but we
-    // try to avoid that expense.
-    ByteArrayOutputStream compressedData = 
-        new ByteArrayOutputStream(readBuffer.length + COMPRESSION_TOLERANCE_BYTES);
-    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-
+    entryHeader.write(fileTypeData);
+    return entryHeader.toByteArray();
+  }
+  
+  private void writeFileDataViaCache(BlockCompressionPipeline pipeline, String path, File file)
+      throws IOException {
+    HashCode contentHash = CompressedDataCache.hashContent(Files.asByteSource(file));
+    // The compressed data depends only on the content and the level chosen for
+    // the entry, so identical files share cached data whatever their paths.
+    byte[] sample = new byte[BlockCompressionPipeline.SAMPLE_SIZE];
+    int sampleLength;
     try (FileInputStream fin = new FileInputStream(file)) {
-      int bytesRead;
-      
-      // Takes a block of bytes from the input file and compresses, then writes
-      // the compressed and decompressed sizes to the MXP followed by the
-      // compressed bytes themselves. Repeats for rest of file input.
-      while ((bytesRead = fin.read(readBuffer)) != -1) {
-        deflater.setInput(readBuffer, 0, bytesRead);
-        deflater.finish(); // signal that this is the entire input for compression.
-
-        int segmentSize = 0;
-        compressedData.reset();
-      
-        // Most of the time compressionBuffer will be large enough to hold the
-        // entirety of the compressed data, but as the compression algorithm can
-        // sometimes result in more output bytes than input we need to use a
-        // ByteArrayOutputStream to allow for this.
-        int bytesCompressed;
-        while ((bytesCompressed = deflater.deflate(compressionBuffer)) > 0) {
-          segmentSize += bytesCompressed;
-          compressedData.write(compressionBuffer, 0, bytesCompressed);
-        }
-
-        writeUnsignedInt32(mxpFile, bytesRead);
-        writeUnsignedInt32(mxpFile, segmentSize);
-        mxpFile.write(compressedData.toByteArray());
-
-        deflater.reset();
+      sampleLength = ByteStreams.read(fin, sample, 0, sample.length);
+    }
+    String key = CompressedDataCache.computeKey(contentHash, compressionStrategy,
+        compressionStrategy.getEntryLevel(path, sample, sampleLength));
+    
+    try (InputStream cachedData = cache.get(key)) {
+      if (cachedData != null) {
+        logger.fine("Using cached data for '" + path + "'.");
+        pipeline.writeRaw(cachedData);
+        return;
+      }
+    }
+    
+    BlockCompressionPipeline.EncodedDataSink sink = cache.newEntry(key);
+    try (HashingInputStream fin = new HashingInputStream(
+        CompressedDataCache.getContentHashFunction(), new FileInputStream(file))) {
+      pipeline.writeFileData(path, fin, sink);
+      // Only cache the data if the file did not change while being read.
+      if (fin.hash().equals(contentHash)) {
+        pipeline.commit(sink);
+      } else {
+        pipeline.abort(sink);
       }
-
-      mxpFile.write(FILE_TERMINATOR);
     }
   }
 
@@ -0,0 +1,357 @@
+package uk.co.familystock.mxptool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decompresses the file data of a single entry across the threads of a
+ * {@link ForkJoinPool}.
+ *
+ * <p>Every block of file data in an MXP archive is a separate zlib stream, and
+ * the entry's {@link MxpBlockIndex} gives the decompressed offset of each, so
+ * runs of blocks can be decompressed independently and their output written
+ * straight to its final place in the target.
+ *
+ * @author bstock@google.com (Benjamin Stock)
+ */
+final class ParallelEntryInflater {
+
+  // Number of blocks decompressed by a single task, enough to outweigh the
+  // cost of forking it.
+  private static final int BLOCKS_PER_TASK = 64;
+
+  private final ByteBuffer fileData;
+  private final MxpBlockIndex index;
+  private final CodecPool codecPool;
+  private MxpMetricsListener metricsListener;
+  private String metricsPath;
+
+  /**
+   * Creates an inflater for the stored file data in {@code fileData}, from its
+   * position to its limit, borrowing inflaters from {@code codecPool}.
+   */
+  ParallelEntryInflater(ByteBuffer fileData, MxpBlockIndex index, CodecPool codecPool) {
+    Preconditions.checkNotNull(fileData);
+    Preconditions.checkNotNull(index);
+    Preconditions.checkNotNull(codecPool);
+    this.fileData = fileData.slice();
+    this.index = index;
+    this.codecPool = codecPool;
+  }
+
+  /**
+   * Sets a listener to report the amount of data decompressed, and the time
+   * taken, to once the file has been decompressed, and any failure to
+   * decompress it to.
+   *
+   * @param path the path of the entry the data belongs to, if known
+   */
+  void setMetricsListener(MxpMetricsListener metricsListener, @Nullable String path) {
+    this.metricsListener = Preconditions.checkNotNull(metricsListener);
+    this.metricsPath = path;
+  }
+
+  /**
+   * Gets the size of the file once decompressed.
+   */
+  long getDecompressedSize() {
+    return index.getDecompressedSize();
+  }
+
+  /**
+   * Decompresses the file into {@code target}, starting at its position, which
+   * is then advanced past the file.
+   *
+   * @throws IllegalArgumentException if {@code target} has too little room
+   * @throws IOException if the file data could not be decompressed
+   */
+  void inflate(ByteBuffer target, ForkJoinPool pool) throws IOException {
+    Preconditions.checkNotNull(target);
+    Preconditions.checkNotNull(pool);
+    long size = index.getDecompressedSize();
+    Preconditions.checkArgument(target.remaining() >= size,
+        "Target has room for %s bytes, but %s are needed.", target.remaining(), size);
+    invoke(pool, new InflationTask(0, index.getBlockCount(), new BufferOutput(target)), true);
+    target.position(target.position() + (int) size);
+  }
+
+  /**
+   * Decompresses the file into {@code target}, starting at its start.
+   *
+   * @throws IOException if the file data could not be decompressed or written
+   */
+  void inflate(FileChannel target, ForkJoinPool pool) throws IOException {
+    Preconditions.checkNotNull(target);
+    Preconditions.checkNotNull(pool);
+    invoke(pool, new InflationTask(0, index.getBlockCount(), new FileOutput(target)), true);
+  }
+
+  /**
+   * Decompresses the file without keeping the output, to check that every
+   * block decompresses to its recorded size. When called from a task running
+   * in a {@link ForkJoinPool} the work is spread across that pool, otherwise
+   * across the common pool. Failures are left for the caller to report to any
+   * metrics listener, along with those it finds itself.
+   * 
+   * @throws IOException if the file data could not be decompressed
+   */
+  void verify() throws IOException {
+    invoke(null, new InflationTask(0, index.getBlockCount(), new DiscardOutput()), false);
+  }
+
+  /**
+   * Runs {@code task} in {@code pool}, or in the current pool if null,
+   * reporting it to any metrics listener.
+   */
+  private void invoke(@Nullable ForkJoinPool pool, InflationTask task, boolean reportErrors)
+      throws IOException {
+    long start = metricsListener == null ? 0 : System.nanoTime();
+    try {
+      if (pool == null) {
+        task.invoke();
+      } else {
+        pool.invoke(task);
+      }
+    } catch (RuntimeException e) {
+      IOException failure = unwrap(e);
+      if (metricsListener != null && reportErrors) {
+        metricsListener.error(null, failure);
+      }
+      throw failure;
+    }
+    if (metricsListener != null) {
+      long compressedBytes = 0;
+      for (int block = 0; block < index.getBlockCount(); block++) {
+        compressedBytes += index.getCompressedBlockSize(block);
+      }
+      metricsListener.entryRead(metricsPath, compressedBytes, index.getDecompressedSize(),
+          index.getBlockCount(), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Gets the {@code IOException} thrown by a task from what the pool threw,
+   * rethrowing it as it is if there was none.
+   */
+  private static IOException unwrap(RuntimeException e) {
+    // The pool may wrap what was thrown in a copy of itself, so look
+    // through the causes for the original IOException.
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof TaskIOException) {
+        return (IOException) cause.getCause();
+      }
+    }
+    throw e;
+  }
+
+  /**
+   * Somewhere to put decompressed data, which must allow writes from several
+   * threads at once.
+   */
+  private interface Output {
+
+    /**
+     * Gets the array backing the output, or null if there is none.
+     */
+    byte[] array();
+
+    /**
+     * Gets the offset of the start of the file within {@link #array()}, only
+     * called if there is an array.
+     */
+    int arrayOffset();
+
+    void write(long offset, byte[] data, int length) throws IOException;
+  }
+
+  private static final class BufferOutput implements Output {
+
+    private final ByteBuffer target;
+
+    private BufferOutput(ByteBuffer target) {
+      this.target = target;
+    }
+
+    @Override
+    public byte[] array() {
+      return target.hasArray() && !target.isReadOnly() ? target.array() : null;
+    }
+
+    @Override
+    public int arrayOffset() {
+      return target.arrayOffset() + target.position();
+    }
+
+    @Override
+    public void write(long offset, byte[] data, int length) {
+      ByteBuffer view = target.duplicate();
+      view.position(target.position() + (int) offset);
+      view.put(data, 0, length);
+    }
+  }
+
+  private static final class FileOutput implements Output {
+
+    private final FileChannel target;
+
+    private FileOutput(FileChannel target) {
+      this.target = target;
+    }
+
+    @Override
+    public byte[] array() {
+      return null;
+    }
+
+    @Override
+    public int arrayOffset() {
+      return 0;
+    }
+
+    @Override
+    public void write(long offset, byte[] data, int length) throws IOException {
+      // Positional writes leave the channel's own position alone, so can be
+      // made by several threads at once.
+      ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+      while (buffer.hasRemaining()) {
+        target.write(buffer, offset + buffer.position());
+      }
+    }
+  }
+
+  private static final class DiscardOutput implements Output {
+
+    @Override
+    public byte[] array() {
+      return null;
+    }
+
+    @Override
+    public int arrayOffset() {
+      return 0;
+    }
+
+    @Override
+    public void write(long offset, byte[] data, int length) {
+      // Nothing to do.
+    }
+  }
+
+  /**
+   * Carries an {@code IOException} out of a task, which can only throw
+   * unchecked exceptions.
+   */
+  private static final class TaskIOException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private TaskIOException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * Decompresses a run of blocks, splitting it among subtasks if large.
+   */
+  private final class InflationTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int firstBlock;
+    private final int endBlock;
+    private final Output output;
+
+    private InflationTask(int firstBlock, int endBlock, Output output) {
+      this.firstBlock = firstBlock;
+      this.endBlock = endBlock;
+      this.output = output;
+    }
+
+    @Override
+    protected void compute() {
+      if (endBlock - firstBlock > BLOCKS_PER_TASK) {
+        int middle = (firstBlock + endBlock) >>> 1;
+        invokeAll(new InflationTask(firstBlock, middle, output),
+            new InflationTask(middle, endBlock, output));
+        return;
+      }
+      if (firstBlock == endBlock) {
+        return;
+      }
+      try {
+        inflateBlocks();
+      } catch (IOException e) {
+        throw new TaskIOException(e);
+      }
+    }
+
+    private void inflateBlocks() throws IOException {
+      if (output instanceof DiscardOutput) {
+        checkBlocks();
+        return;
+      }
+      long start = index.getBlockOffset(firstBlock);
+      long length = index.getBlockOffset(endBlock - 1) - start + index.getBlockSize(endBlock - 1);
+      if (length > Integer.MAX_VALUE) {
+        throw new MxpFormatException("Blocks " + firstBlock + " to " + (endBlock - 1)
+            + " decompress to " + length + " bytes, too many to hold at once.");
+      }
+
+      // Decompress straight into the target where possible.
+      byte[] data = output.array();
+      int dataOffset = 0;
+      if (data == null) {
+        data = new byte[(int) length];
+      } else {
+        dataOffset = output.arrayOffset() + (int) start;
+      }
+
+      byte[] input = new byte[BlockCompressionPipeline.BLOCK_SIZE * 2];
+      Inflater inflater = codecPool.borrowInflater();
+      try {
+        int position = dataOffset;
+        for (int block = firstBlock; block < endBlock; block++) {
+          if (input.length < index.getCompressedBlockSize(block)) {
+            input = new byte[index.getCompressedBlockSize(block)];
+          }
+          index.inflateBlock(block, fileData, inflater, input, data, position);
+          position += index.getBlockSize(block);
+        }
+      } finally {
+        codecPool.release(inflater);
+      }
+
+      if (output.array() == null) {
+        output.write(start, data, (int) length);
+      }
+    }
+
+    /**
+     * Decompresses the blocks only to check them, through a buffer of fixed
+     * size rather than one holding their whole output.
+     */
+    private void checkBlocks() throws IOException {
+      byte[] input = new byte[BlockCompressionPipeline.BLOCK_SIZE * 2];
+      byte[] scratch = new byte[BlockCompressionPipeline.BLOCK_SIZE * 8];
+      Inflater inflater = codecPool.borrowInflater();
+      try {
+        for (int block = firstBlock; block < endBlock; block++) {
+          if (input.length < index.getCompressedBlockSize(block)) {
+            input = new byte[index.getCompressedBlockSize(block)];
+          }
+          index.checkBlock(block, fileData, inflater, input, scratch);
+        }
+      } finally {
+        codecPool.release(inflater);
+      }
+    }
+  }
+}
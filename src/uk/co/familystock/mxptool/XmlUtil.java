@@ -5,15 +5,27 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -24,22 +36,99 @@ import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
 /**
  * Provides helper methods for working with XML documents.
  *
+ * <p>Looking up the JAXP factories and compiling schemas is far more costly
+ * than parsing a typical MXI, so compiled schemas are shared by all threads,
+ * while parsers, document builders and transformer and StAX factories, which
+ * are not thread-safe, are kept for reuse by each thread.
+ *
  * @author bstock@google.com (Benjamin Stock)
  */
 final class XmlUtil {
 
+  // Compiled schemas are immutable and thread-safe, so are shared, keyed by
+  // resource path.
+  private static final ConcurrentMap<String, Schema> schemas = Maps.newConcurrentMap();
+
+  // Validating parsers for each thread, keyed by schema resource path. A
+  // parser is removed while in use, so a nested parse gets one of its own.
+  private static final ThreadLocal<Map<String, SAXParser>> validatingParsers =
+      new ThreadLocal<Map<String, SAXParser>>() {
+        @Override
+        protected Map<String, SAXParser> initialValue() {
+          return Maps.newHashMap();
+        }
+      };
+
+  private static final ThreadLocal<DocumentBuilder> documentBuilders =
+      new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+          return newDocumentBuilder();
+        }
+      };
+
+  private static final ThreadLocal<TransformerFactory> transformerFactories =
+      new ThreadLocal<TransformerFactory>() {
+        @Override
+        protected TransformerFactory initialValue() {
+          return TransformerFactory.newInstance();
+        }
+      };
+
+  // Has the JDK's StAX reader report CDATA sections rather than plain text, so
+  // they can be printed as they were.
+  private static final String REPORT_CDATA =
+      "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+  // Only text is left for the reader to resolve, so external entities and
+  // DTDs aren't fetched.
+  private static final ThreadLocal<XMLInputFactory> inputFactories =
+      new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+          XMLInputFactory factory = XMLInputFactory.newInstance();
+          factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+          factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+          if (factory.isPropertySupported(REPORT_CDATA)) {
+            factory.setProperty(REPORT_CDATA, true);
+          }
+          return factory;
+        }
+      };
+
+  private static final ThreadLocal<XMLOutputFactory> outputFactories =
+      new ThreadLocal<XMLOutputFactory>() {
+        @Override
+        protected XMLOutputFactory initialValue() {
+          return XMLOutputFactory.newInstance();
+        }
+      };
+
+  private static final String INDENT = "  ";
+
   private XmlUtil() {
     // Utility class, so remove ability to instantiate.
   }
   
   /**
-   * Creates and returns a non-validating {@link DocumentBuilder} using the 
-   * internally recommended approach.
+   * Returns a non-validating {@link DocumentBuilder} using the internally
+   * recommended approach. The builder belongs to the calling thread and is
+   * returned again by later calls on it, so should be used straight away
+   * rather than held on to.
    */
   static DocumentBuilder getDocumentBuilder() {
+    DocumentBuilder builder = documentBuilders.get();
+    builder.reset();
+    return builder;
+  }
+
+  private static DocumentBuilder newDocumentBuilder() {
     try {
       DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
       factory.setValidating(false);
@@ -60,7 +149,51 @@ final class XmlUtil {
    */
   static void parseAndValidateDocument(File xmlFile, String schemaPath, DefaultHandler docHandler)
       throws IOException, SAXException {
-    SAXParser parser = null;
+    Map<String, SAXParser> parsers = validatingParsers.get();
+    SAXParser parser = borrowValidatingParser(parsers, schemaPath);
+    try {
+      parser.parse(xmlFile, docHandler);
+    } finally {
+      releaseValidatingParser(parsers, schemaPath, parser);
+    }
+  }
+
+  /**
+   * As {@link #parseAndValidateDocument(File, String, DefaultHandler)}, but
+   * reading the XML document from a stream, which is left open. The parser
+   * closes whatever it is given once done, so it is handed a wrapper whose
+   * {@code close()} does nothing.
+   */
+  static void parseAndValidateDocument(InputStream xml, String schemaPath,
+      DefaultHandler docHandler) throws IOException, SAXException {
+    Map<String, SAXParser> parsers = validatingParsers.get();
+    SAXParser parser = borrowValidatingParser(parsers, schemaPath);
+    try {
+      parser.parse(new FilterInputStream(xml) {
+        @Override
+        public void close() {
+          // Leave the caller's stream open.
+        }
+      }, docHandler);
+    } finally {
+      releaseValidatingParser(parsers, schemaPath, parser);
+    }
+  }
+
+  private static SAXParser borrowValidatingParser(Map<String, SAXParser> parsers,
+      String schemaPath) {
+    SAXParser parser = parsers.remove(schemaPath);
+    return parser != null ? parser : newValidatingParser(schemaPath);
+  }
+
+  private static void releaseValidatingParser(Map<String, SAXParser> parsers, String schemaPath,
+      SAXParser parser) {
+    // Resetting keeps the schema, but drops the handler and anything it holds.
+    parser.reset();
+    parsers.put(schemaPath, parser);
+  }
+
+  private static SAXParser newValidatingParser(String schemaPath) {
     try {
       SAXParserFactory parserFactory = SAXParserFactory.newInstance();
       parserFactory.setValidating(false);
@@ -69,31 +202,201 @@ final class XmlUtil {
 //      SecureJDKXercesSAXFactory parserFactory = SecureXMLParsing.getSAXParserFactory();
 //      parserFactory.setValidating(false); // do not do DTD validation.
       
-      SchemaFactory fac = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-      StreamSource schemaFile = new StreamSource(XmlUtil.class.getResourceAsStream(schemaPath));
-      Schema sc = fac.newSchema(schemaFile);
-      parserFactory.setSchema(sc);
+      parserFactory.setSchema(getSchema(schemaPath));
       
-      parser = parserFactory.newSAXParser();
+      return parserFactory.newSAXParser();
     } catch (ParserConfigurationException e) {
       throw new RuntimeException("Configuration error while trying to load XML parser", e);
     } catch (SAXException e) {
       throw new RuntimeException("SAX error while trying to load XML parser", e);
     }
-    parser.parse(xmlFile, docHandler);
   }
 
   /**
-   * Serialises and prints the contents of the DOM represented by {@code doc}
-   * to the given output.
+   * Gets the schema at the given resource path, compiling it the first time
+   * it is needed. Two threads may both compile a schema if they need it at
+   * the same time, but only one copy is kept.
+   */
+  private static Schema getSchema(String schemaPath) throws SAXException {
+    Schema schema = schemas.get(schemaPath);
+    if (schema == null) {
+      SchemaFactory fac = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+      StreamSource schemaFile = new StreamSource(XmlUtil.class.getResourceAsStream(schemaPath));
+      Schema compiled = fac.newSchema(schemaFile);
+      schema = schemas.putIfAbsent(schemaPath, compiled);
+      if (schema == null) {
+        schema = compiled;
+      }
+    }
+    return schema;
+  }
+
+  /**
+   * Serialises the DOM represented by {@code doc} to the given output as is,
+   * i.e. without re-indenting it, using the UTF-8 encoding.
    */
-  static void printDom(Document doc, Writer out) {
+  static void writeDom(Document doc, OutputStream out) {
     try {
-      Transformer serializer = TransformerFactory.newInstance().newTransformer();
-      serializer.setOutputProperty(OutputKeys.INDENT, "yes");
+      Transformer serializer = transformerFactories.get().newTransformer();
+      serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
       serializer.transform(new DOMSource(doc), new StreamResult(out));
     } catch (TransformerException e) {
-      throw new RuntimeException("Fatal error trying to print DOM", e);
+      throw new RuntimeException("Fatal error trying to write DOM", e);
+    }
+  }
+
+  /**
+   * Prints the XML document read from {@code in} to the given output,
+   * indenting each element by its depth. The document is streamed from one
+   * to the other, so memory use does not grow with its size. Whitespace
+   * between elements is replaced by the indentation, while any other text and
+   * CDATA sections are kept as is, along with the end tag of the element containing it on the
+   * same line. Neither stream is closed.
+   *
+   * @throws XMLStreamException if the document is malformed
+   */
+  static void printXml(InputStream in, Writer out) throws XMLStreamException {
+    XMLStreamReader reader = inputFactories.get().createXMLStreamReader(in);
+    try {
+      XMLStreamWriter writer = outputFactories.get().createXMLStreamWriter(out);
+      writer.writeStartDocument("1.0");
+      // An element is only written once the event after its start tag shows
+      // whether it is empty.
+      PendingElement pending = null;
+      int depth = 0;
+      // Whether the current line holds text, so isn't finished with a break.
+      boolean inline = false;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (pending != null && event != XMLStreamConstants.END_ELEMENT) {
+          pending.write(writer, false);
+          pending = null;
+        }
+        switch (event) {
+          case XMLStreamConstants.START_ELEMENT:
+            if (!inline) {
+              writeIndent(writer, depth);
+            }
+            pending = new PendingElement(reader);
+            depth++;
+            inline = false;
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            depth--;
+            if (pending != null) {
+              pending.write(writer, true);
+              pending = null;
+            } else {
+              if (!inline) {
+                writeIndent(writer, depth);
+              }
+              writer.writeEndElement();
+            }
+            inline = false;
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+            // Text may be reported in several parts, so whitespace is only
+            // dropped if it doesn't follow other text.
+            if (inline || !reader.isWhiteSpace()) {
+              writer.writeCharacters(reader.getText());
+              inline = true;
+            }
+            break;
+          case XMLStreamConstants.CDATA:
+            writer.writeCData(reader.getText());
+            inline = true;
+            break;
+          case XMLStreamConstants.ENTITY_REFERENCE:
+            writer.writeEntityRef(reader.getLocalName());
+            inline = true;
+            break;
+          case XMLStreamConstants.COMMENT:
+            if (!inline) {
+              writeIndent(writer, depth);
+            }
+            writer.writeComment(reader.getText());
+            break;
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            if (!inline) {
+              writeIndent(writer, depth);
+            }
+            writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+            break;
+          case XMLStreamConstants.DTD:
+            writeIndent(writer, depth);
+            writer.writeDTD(reader.getText());
+            break;
+          case XMLStreamConstants.END_DOCUMENT:
+            writer.writeCharacters("\n");
+            writer.writeEndDocument();
+            break;
+          default:
+            break;
+        }
+      }
+      writer.flush();
+      writer.close();
+    } finally {
+      reader.close();
     }
-  }  
+  }
+
+  private static void writeIndent(XMLStreamWriter writer, int depth) throws XMLStreamException {
+    writer.writeCharacters("\n");
+    for (int i = 0; i < depth; i++) {
+      writer.writeCharacters(INDENT);
+    }
+  }
+
+  /**
+   * The start tag of an element, held until it is known whether the element
+   * is empty.
+   */
+  private static final class PendingElement {
+
+    private final QName name;
+    private final String[] namespaces;
+    private final String[] attributes;
+    private final QName[] attributeNames;
+
+    private PendingElement(XMLStreamReader reader) {
+      name = reader.getName();
+      namespaces = new String[reader.getNamespaceCount() * 2];
+      for (int i = 0; i < reader.getNamespaceCount(); i++) {
+        namespaces[i * 2] = reader.getNamespacePrefix(i);
+        namespaces[i * 2 + 1] = reader.getNamespaceURI(i);
+      }
+      attributeNames = new QName[reader.getAttributeCount()];
+      attributes = new String[reader.getAttributeCount()];
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        attributeNames[i] = reader.getAttributeName(i);
+        attributes[i] = reader.getAttributeValue(i);
+      }
+    }
+
+    private void write(XMLStreamWriter writer, boolean empty) throws XMLStreamException {
+      if (empty) {
+        writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+      } else {
+        writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+      }
+      for (int i = 0; i < namespaces.length; i += 2) {
+        if (Strings.isNullOrEmpty(namespaces[i])) {
+          writer.writeDefaultNamespace(namespaces[i + 1]);
+        } else {
+          writer.writeNamespace(namespaces[i], namespaces[i + 1]);
+        }
+      }
+      for (int i = 0; i < attributes.length; i++) {
+        QName attributeName = attributeNames[i];
+        if (Strings.isNullOrEmpty(attributeName.getNamespaceURI())) {
+          writer.writeAttribute(attributeName.getLocalPart(), attributes[i]);
+        } else {
+          writer.writeAttribute(attributeName.getPrefix(), attributeName.getNamespaceURI(),
+              attributeName.getLocalPart(), attributes[i]);
+        }
+      }
+    }
+  }
 }